@@ -0,0 +1,326 @@
+package io.legado.app
+
+import android.app.Instrumentation
+import android.graphics.Bitmap
+import android.os.Build
+import android.os.Bundle
+import android.os.Debug
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import io.legado.app.data.entities.Book
+import io.legado.app.data.entities.BookChapter
+import io.legado.app.help.book.BookContent
+import io.legado.app.help.book.BookHelp
+import io.legado.app.help.config.ReadBookConfig
+import io.legado.app.ui.book.read.page.provider.ChapterLayoutCache
+import io.legado.app.ui.book.read.page.provider.ChapterProvider
+import io.legado.app.ui.book.read.page.provider.ZhLayout
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.Random
+
+/**
+ * 排版性能基准,需要在设备上运行
+ * ./gradlew connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=io.legado.app.LayoutBenchmarkTest
+ * 任一用例每字耗时超过基线[MAX_RATIO]倍则失败,没有基线的用例也失败
+ * 不同设备耗时差别很大,基线按设备放在测试资源 assets/layoutBenchmark/设备名.txt,
+ * 卸载应用不会丢失,也可以用参数 baseline 指定文件名
+ * 传参 updateBaseline=true 时只测量不断言,输出的基线内容保存到上述文件后提交
+ */
+@RunWith(AndroidJUnit4::class)
+class LayoutBenchmarkTest {
+
+    companion object {
+        private const val TAG = "LayoutBenchmark"
+        private const val WARMUP = 2
+        private const val REPEAT = 5
+        private const val MAX_RATIO = 2.0
+        private const val BASELINE_DIR = "layoutBenchmark"
+        private const val BASELINE_PREFIX = "baseline\t"
+        private const val HAN =
+            "的一是在不了有和人这中大为上个国我以要他时来用们生到作地于出就分对成会可主发年动同工也能下过子说产种面而方后多定行学法所民得经十三之进着等部度家电力里如水化高自二理起小物现实加量都两体制机当使点从业本去把性好应开它合还因由其些然前外天政四日那社义事平形相全表间样与关各重新线内数正心反你明看原又么利比或但质气第向道命此变条只没结解问意建月公无系军很情者最立代想已通并提直题程展五果料象员革位入常文总次品式活设及管特件长求老头基资边流路级少图山统接知较将组见计别她手角期根论运农指几九区强放决西被干做必战先回则任取据处队南给色光门即保治北造百规热领七海口东导器压志世金增争济阶油思术极交受联什认六共权收证改清己美再采转更单风切打白教速花带安场身车例真务具万每目至达走积示议声报斗完类八离华名确才科张信马节话米整空元况今集温传土许步群广石记需段研界拉林律叫且究观越织装影算低持音众书布复容儿须际商非验连断深难近千周委素技备半办青省列习响约支般史感劳便团往历市克何除消构府称太准精值号率族维划选标写存候毛亲快效斯院查江型眼王按格养易置派层片始却专状育厂京识适属圆包火住调满县局照参红细引听该铁价严"
+        private const val PUNCTUATION = "，，，。。！？；：、"
+        private val words = listOf(
+            "Android", "layout", "TextView", "2024", "HTTP", "OK", "iPhone", "v1.2.3", "😀", "𠀀"
+        )
+        private val fontSizes = intArrayOf(16, 20, 28)
+        private val viewSizes = arrayOf(720 to 1280, 1080 to 2340, 1600 to 2560)
+    }
+
+    private class Corpus(val name: String, val paragraphs: List<String>) {
+        val charCount = paragraphs.sumOf { it.length }
+    }
+
+    private val book = Book(bookUrl = "benchmark://layout", name = "layoutBenchmark")
+    private val chapter = BookChapter(
+        url = "benchmark://layout/1",
+        title = "第一章 排版基准",
+        bookUrl = book.bookUrl
+    )
+    private val baselineName = InstrumentationRegistry.getArguments().getString("baseline")
+        ?: "${Build.MODEL}-${Build.VERSION.SDK_INT}".replace(Regex("[^A-Za-z0-9_-]"), "_")
+    private val updateBaseline = InstrumentationRegistry.getArguments()
+        .getString("updateBaseline") == "true"
+    private val baseline = hashMapOf<String, Long>()
+    private val measured = linkedMapOf<String, Long>()
+    private val results = arrayListOf<String>()
+    private var textSize = 0
+    private var useZhLayout = false
+    private var viewWidth = 0
+    private var viewHeight = 0
+
+    @Before
+    fun setUp() {
+        textSize = ReadBookConfig.textSize
+        useZhLayout = ReadBookConfig.useZhLayout
+        viewWidth = ChapterProvider.viewWidth
+        viewHeight = ChapterProvider.viewHeight
+        ChapterLayoutCache.enabled = false
+        if (!updateBaseline) {
+            loadBaseline()
+        }
+    }
+
+    @After
+    fun tearDown() {
+        ReadBookConfig.textSize = textSize
+        ReadBookConfig.useZhLayout = useZhLayout
+        ChapterProvider.upStyle()
+        if (viewWidth > 0 && viewHeight > 0) {
+            ChapterProvider.upViewSize(viewWidth, viewHeight)
+        }
+        ChapterLayoutCache.enabled = true
+        BookHelp.clearCache(book)
+    }
+
+    @Test
+    fun chapterLayout() {
+        val corpora = listOf(
+            Corpus("short", createParagraphs(1, 500, mixed = false, images = false)),
+            Corpus("10K", createParagraphs(2, 10_000, mixed = false, images = false)),
+            Corpus("mixed10K", createParagraphs(3, 10_000, mixed = true, images = false)),
+            Corpus("image10K", createParagraphs(4, 10_000, mixed = false, images = true))
+        )
+        createImages(corpora)
+        report("corpus engine font view ns/char KB/chapter pages pages/s")
+        for (zh in booleanArrayOf(false, true)) {
+            for (fontSize in fontSizes) {
+                for ((width, height) in viewSizes) {
+                    setStyle(zh, fontSize, width, height)
+                    corpora.forEach { benchmarkChapter(it, zh, fontSize, width, height) }
+                }
+            }
+        }
+        //长章节只测默认参数
+        val long = Corpus("100K", createParagraphs(5, 100_000, mixed = false, images = false))
+        for (zh in booleanArrayOf(false, true)) {
+            setStyle(zh, 20, 1080, 2340)
+            benchmarkChapter(long, zh, 20, 1080, 2340)
+        }
+        assertResults()
+    }
+
+    @Test
+    fun zhLayout() {
+        val corpora = listOf(
+            Corpus("10K", createParagraphs(2, 10_000, mixed = false, images = false)),
+            Corpus("mixed10K", createParagraphs(3, 10_000, mixed = true, images = false))
+        )
+        report("corpus font view ns/char KB/chapter")
+        for (fontSize in fontSizes) {
+            for ((width, height) in viewSizes) {
+                setStyle(true, fontSize, width, height)
+                corpora.forEach { corpus ->
+                    val paint = ChapterProvider.contentPaint
+                    val lineWidth = ChapterProvider.visibleWidth
+                    val (ns, bytes) = measure {
+                        corpus.paragraphs.forEach {
+                            ZhLayout(it, paint, lineWidth, FloatArray(it.length))
+                        }
+                    }
+                    val nsPerChar = ns / corpus.charCount
+                    report(
+                        "${corpus.name} $fontSize ${width}x$height $nsPerChar ${bytes / 1024}"
+                    )
+                    check("zhLayout ${corpus.name} $fontSize ${width}x$height", nsPerChar)
+                }
+            }
+        }
+        assertResults()
+    }
+
+    private fun benchmarkChapter(
+        corpus: Corpus,
+        zh: Boolean,
+        fontSize: Int,
+        width: Int,
+        height: Int
+    ) {
+        val content = BookContent(false, corpus.paragraphs, null)
+        var pages = 0
+        val (ns, bytes) = measure {
+            runBlocking {
+                pages = ChapterProvider
+                    .getTextChapter(book, chapter, chapter.title, content, 1)
+                    .pageSize
+            }
+        }
+        val nsPerChar = ns / corpus.charCount
+        val pagesPerSecond = pages * 1_000_000_000L / ns.coerceAtLeast(1)
+        val name = "${corpus.name} ${if (zh) "zh" else "static"} $fontSize ${width}x$height"
+        report("$name $nsPerChar ${bytes / 1024} $pages $pagesPerSecond")
+        check(name, nsPerChar)
+    }
+
+    /**
+     * @return 耗时中位数ns 和 单次分配字节数
+     */
+    private fun measure(block: () -> Unit): Pair<Long, Long> {
+        repeat(WARMUP) { block() }
+        val times = LongArray(REPEAT)
+        val allocStart = allocatedBytes()
+        for (i in 0 until REPEAT) {
+            val start = System.nanoTime()
+            block()
+            times[i] = System.nanoTime() - start
+        }
+        val allocated = (allocatedBytes() - allocStart) / REPEAT
+        times.sort()
+        return times[REPEAT / 2] to allocated
+    }
+
+    private fun allocatedBytes(): Long {
+        return Debug.getRuntimeStat("art.gc.bytes-allocated")?.toLongOrNull() ?: 0L
+    }
+
+    private fun setStyle(zh: Boolean, fontSize: Int, width: Int, height: Int) {
+        ReadBookConfig.useZhLayout = zh
+        ReadBookConfig.textSize = fontSize
+        ChapterProvider.upStyle()
+        ChapterProvider.upViewSize(width, height)
+    }
+
+    /**
+     * 基线文件每行 用例名\t每字耗时ns,可以带更新基线时输出的前缀,从测试apk的assets读取
+     */
+    private fun loadBaseline() {
+        val assets = InstrumentationRegistry.getInstrumentation().context.assets
+        kotlin.runCatching {
+            assets.open("$BASELINE_DIR/$baselineName.txt").bufferedReader().useLines { lines ->
+                lines.map { it.removePrefix(BASELINE_PREFIX) }.forEach { line ->
+                    val key = line.substringBeforeLast('\t')
+                    line.substringAfterLast('\t').toLongOrNull()?.let { baseline[key] = it }
+                }
+            }
+        }
+    }
+
+    private fun check(name: String, nsPerChar: Long) {
+        measured[name] = nsPerChar
+        if (updateBaseline) return
+        val base = baseline[name]
+        if (base == null) {
+            results.add("$name: no baseline")
+            return
+        }
+        val max = (base * MAX_RATIO).toLong()
+        if (nsPerChar > max) {
+            results.add("$name: $nsPerChar ns/char > $max (baseline $base)")
+        }
+    }
+
+    /**
+     * 更新基线时输出基线内容,否则检查是否超过基线
+     */
+    private fun assertResults() {
+        if (updateBaseline) {
+            report("baseline for app/src/androidTest/assets/$BASELINE_DIR/$baselineName.txt:")
+            measured.forEach { (name, nsPerChar) ->
+                report("$BASELINE_PREFIX$name\t$nsPerChar")
+            }
+            return
+        }
+        if (results.any { it.endsWith("no baseline") }) {
+            results.add(
+                "missing $BASELINE_DIR/$baselineName.txt entries, " +
+                        "run with updateBaseline=true and check in the output"
+            )
+        }
+        Assert.assertTrue(results.joinToString("\n"), results.isEmpty())
+    }
+
+    private fun report(line: String) {
+        Log.i(TAG, line)
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, Bundle().apply {
+            putString(Instrumentation.REPORT_KEY_STREAMRESULT, "$line\n")
+        })
+    }
+
+    /**
+     * 固定种子生成正文,保证每次运行语料相同
+     */
+    private fun createParagraphs(
+        seed: Long,
+        charCount: Int,
+        mixed: Boolean,
+        images: Boolean
+    ): List<String> {
+        val random = Random(seed)
+        val paragraphs = arrayListOf<String>()
+        var count = 0
+        while (count < charCount) {
+            val sb = StringBuilder()
+            val length = 40 + random.nextInt(260)
+            while (sb.length < length) {
+                when {
+                    mixed && random.nextInt(12) == 0 -> {
+                        sb.append(' ').append(words[random.nextInt(words.size)]).append(' ')
+                    }
+
+                    random.nextInt(10) == 0 -> {
+                        sb.append(PUNCTUATION[random.nextInt(PUNCTUATION.length)])
+                    }
+
+                    random.nextInt(40) == 0 -> sb.append("“").append(HAN[random.nextInt(HAN.length)])
+                        .append(HAN[random.nextInt(HAN.length)]).append("”")
+
+                    else -> sb.append(HAN[random.nextInt(HAN.length)])
+                }
+            }
+            sb.append('。')
+            paragraphs.add(sb.toString())
+            count += sb.length
+            if (images && paragraphs.size % 5 == 0) {
+                paragraphs.add("<img src=\"bench${paragraphs.size % 3}.png\">")
+            }
+        }
+        return paragraphs
+    }
+
+    /**
+     * 图片预先写入缓存目录,避免下载
+     */
+    private fun createImages(corpora: List<Corpus>) {
+        val sizes = arrayOf(800 to 600, 600 to 1600, 1200 to 400)
+        corpora.flatMap { it.paragraphs }
+            .filter { it.startsWith("<img") }
+            .map { it.substringAfter("src=\"").substringBefore('"') }
+            .distinct()
+            .forEach { src ->
+                val (width, height) = sizes[src.filter { it.isDigit() }.toInt() % sizes.size]
+                val file = BookHelp.getImage(book, src)
+                file.parentFile?.mkdirs()
+                val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565)
+                file.outputStream().use {
+                    bitmap.compress(Bitmap.CompressFormat.PNG, 100, it)
+                }
+                bitmap.recycle()
+            }
+    }
+
+}
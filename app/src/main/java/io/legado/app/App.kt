@@ -7,8 +7,6 @@ import android.content.Context
 import android.content.pm.ActivityInfo
 import android.content.res.Configuration
 import android.os.Build
-import com.github.liuyueyi.quick.transfer.ChineseUtils
-import com.github.liuyueyi.quick.transfer.constants.TransType
 import com.jeremyliao.liveeventbus.LiveEventBus
 import io.legado.app.base.AppContextWrapper
 import io.legado.app.constant.AppConst.channelIdDownload
@@ -18,6 +16,7 @@ import io.legado.app.constant.AppLog
 import io.legado.app.constant.PreferKey
 import io.legado.app.data.appDb
 import io.legado.app.help.AppWebDav
+import io.legado.app.help.ChineseConverter
 import io.legado.app.help.CrashHandler
 import io.legado.app.help.DefaultData
 import io.legado.app.help.LifecycleHelp
@@ -93,10 +92,7 @@ class App : Application() {
                 Backup.clearCache()
 
                 // 5. 初始化简繁转换引擎
-                when (AppConfig.chineseConverterType) {
-                    1 -> ChineseUtils.preLoad(true, TransType.TRADITIONAL_TO_SIMPLE)
-                    2 -> ChineseUtils.preLoad(true, TransType.SIMPLE_TO_TRADITIONAL)
-                }
+                ChineseConverter.preLoad()
 
                 // 6. 调整排序序号
                 SourceHelp.adjustSortNumber()
@@ -3,6 +3,8 @@ package io.legado.app.api.controller
 import io.legado.app.api.ReturnData
 import io.legado.app.data.appDb
 import io.legado.app.data.entities.ReplaceRule
+import io.legado.app.help.book.ReplaceRuleIndex
+import io.legado.app.help.book.ReplaceRuleStats
 import io.legado.app.utils.GSON
 import io.legado.app.utils.fromJsonObject
 import io.legado.app.utils.replace
@@ -19,6 +21,16 @@ object ReplaceRuleController {
         }
 
 
+    /**
+     * 正文替换规则耗时统计
+     */
+    val ruleStats: ReturnData
+        get() {
+            val returnData = ReturnData()
+            returnData.setData(GSON.toJson(ReplaceRuleStats.getStats()))
+            return returnData
+        }
+
     fun saveRule(postData: String?): ReturnData {
         val returnData = ReturnData()
         postData ?: return returnData.setErrorMsg("数据不能为空")
@@ -30,6 +42,7 @@ object ReplaceRuleController {
                 rule.order = appDb.replaceRuleDao.maxOrder + 1
             }
             appDb.replaceRuleDao.insert(rule)
+            ReplaceRuleIndex.update(rule)
         }
         return returnData
     }
@@ -43,6 +56,7 @@ object ReplaceRuleController {
             returnData.setErrorMsg("格式不对")
         } else {
             appDb.replaceRuleDao.delete(rule)
+            ReplaceRuleIndex.remove(rule)
         }
         return returnData
     }
@@ -140,6 +140,8 @@ object PreferKey {
     const val showBookshelfFastScroller = "showBookshelfFastScroller"
     const val importKeepEnable = "importKeepEnable"
     const val previewImageByClick = "previewImageByClick"
+    const val packChapterCache = "packChapterCache"
+    const val compressChapterCache = "compressChapterCache"
 
     const val cPrimary = "colorPrimary"
     const val cAccent = "colorAccent"
@@ -55,22 +55,6 @@ interface ReplaceRuleDao {
     @Query("SELECT * FROM replace_rules WHERE id in (:ids)")
     fun findByIds(vararg ids: Long): List<ReplaceRule>
 
-    @Query(
-        """SELECT * FROM replace_rules WHERE isEnabled = 1 and scopeContent = 1
-        AND (scope LIKE '%' || :name || '%' or scope LIKE '%' || :origin || '%' or scope is null or scope = '')
-        and (excludeScope is null or (excludeScope not LIKE '%' || :name || '%' and excludeScope not LIKE '%' || :origin || '%'))
-        order by sortOrder"""
-    )
-    fun findEnabledByContentScope(name: String, origin: String): List<ReplaceRule>
-
-    @Query(
-        """SELECT * FROM replace_rules WHERE isEnabled = 1 and scopeTitle = 1
-        AND (scope LIKE '%' || :name || '%' or scope LIKE '%' || :origin || '%' or scope is null or scope = '')
-        and (excludeScope is null or (excludeScope not LIKE '%' || :name || '%' and excludeScope not LIKE '%' || :origin || '%'))
-        order by sortOrder"""
-    )
-    fun findEnabledByTitleScope(name: String, origin: String): List<ReplaceRule>
-
     @Query("select * from replace_rules where `group` like '%' || :group || '%'")
     fun getByGroup(group: String): List<ReplaceRule>
 
@@ -293,9 +293,8 @@ data class Book(
         if (toc.isNotEmpty()) {
             newBook.durChapterIndex = BookHelp
                 .getDurChapter(durChapterIndex, durChapterTitle, toc, totalChapterNum)
-            newBook.durChapterTitle = toc[newBook.durChapterIndex].getDisplayTitle(
-                ContentProcessor.get(newBook.name, newBook.origin).getTitleReplaceRules()
-            )
+            newBook.durChapterTitle = ContentProcessor.get(newBook.name, newBook.origin)
+                .getDisplayTitle(toc[newBook.durChapterIndex])
             newBook.durChapterPos = durChapterPos
         }
         newBook.durChapterTime = durChapterTime
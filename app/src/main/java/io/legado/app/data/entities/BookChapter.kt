@@ -5,14 +5,14 @@ import androidx.room.Entity
 import androidx.room.ForeignKey
 import androidx.room.Ignore
 import androidx.room.Index
-import com.github.liuyueyi.quick.transfer.ChineseUtils
 import io.legado.app.R
 import io.legado.app.constant.AppLog
 import io.legado.app.constant.AppPattern
 import io.legado.app.data.appDb
 import io.legado.app.exception.RegexTimeoutException
+import io.legado.app.help.ChineseConverter
 import io.legado.app.help.RuleBigDataHelp
-import io.legado.app.help.config.AppConfig
+import io.legado.app.help.book.ReplaceRuleIndex
 import io.legado.app.model.analyzeRule.AnalyzeUrl
 import io.legado.app.model.analyzeRule.RuleDataInterface
 import io.legado.app.utils.*
@@ -100,10 +100,7 @@ data class BookChapter(
     ): String {
         var displayTitle = title.replace(AppPattern.rnRegex, "")
         if (chineseConvert) {
-            when (AppConfig.chineseConverterType) {
-                1 -> displayTitle = ChineseUtils.t2s(displayTitle)
-                2 -> displayTitle = ChineseUtils.s2t(displayTitle)
-            }
+            displayTitle = ChineseConverter.convert(displayTitle)
         }
         if (useReplace && replaceRules != null) kotlin.run {
             replaceRules.forEach { item ->
@@ -124,6 +121,7 @@ data class BookChapter(
                     } catch (e: RegexTimeoutException) {
                         item.isEnabled = false
                         appDb.replaceRuleDao.update(item)
+                        ReplaceRuleIndex.update(item)
                     } catch (e: CancellationException) {
                         return@run
                     } catch (e: Exception) {
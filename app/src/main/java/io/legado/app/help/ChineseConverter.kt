@@ -0,0 +1,251 @@
+package io.legado.app.help
+
+import com.github.liuyueyi.quick.transfer.ChineseUtils
+import io.legado.app.constant.AppLog
+import io.legado.app.help.config.AppConfig
+import splitties.init.appCtx
+import java.io.File
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.math.max
+
+/**
+ * 简繁转换
+ * 首次使用时把quick-transfer的词表编译为双数组字典树文件,之后内存映射读取,正向最长匹配
+ * 长文本在段落边界切块后并行转换,词组不跨行,切块转换的结果与整体转换一致
+ * 词表读取失败时仍用quick-transfer转换
+ */
+object ChineseConverter {
+
+    const val T2S = 1
+    const val S2T = 2
+
+    /**
+     * 编译结果随依赖版本更新
+     */
+    private const val DICT_VERSION = "0.2.16-1"
+
+    /**
+     * 小于此长度的文本直接转换
+     */
+    private const val PARALLEL_MIN_LENGTH = 16 * 1024
+
+    /**
+     * 每块的最小长度,实际在其后第一个换行处切分
+     */
+    private const val CHUNK_SIZE = 8 * 1024
+
+    /**
+     * 小于此值的字符不是中文,不需要转换
+     */
+    private const val CJK_START = '⺀'
+
+    /**
+     * quick-transfer打包的OpenCC词表,不同版本位置和文件名不同,依次尝试,词组在前
+     */
+    private val sourceDirs = listOf("/dict/", "/opencc/", "/tradition/", "/")
+    private val sourceFiles = mapOf(
+        T2S to listOf(listOf("TSPhrases.txt", "TSCharacters.txt"), listOf("t2s.txt")),
+        S2T to listOf(listOf("STPhrases.txt", "STCharacters.txt"), listOf("s2t.txt"))
+    )
+
+    private val threadCount = max(1, Runtime.getRuntime().availableProcessors() - 1)
+
+    private val executor by lazy {
+        val count = AtomicInteger()
+        Executors.newFixedThreadPool(threadCount, ThreadFactory {
+            Thread(it, "ChineseConverter-${count.incrementAndGet()}").apply {
+                isDaemon = true
+            }
+        })
+    }
+
+    private val dictionaries = hashMapOf<Int, ChineseDictionary?>()
+
+    /**
+     * 编译后的词典目录,测试时替换
+     */
+    internal var dictDir: File? = null
+
+    fun t2s(text: String): String {
+        return convert(text, T2S)
+    }
+
+    fun s2t(text: String): String {
+        return convert(text, S2T)
+    }
+
+    /**
+     * 按转换类型转换
+     * @param type 1繁转简 2简转繁 其它不转换
+     */
+    fun convert(text: String, type: Int = AppConfig.chineseConverterType): String {
+        if (type != T2S && type != S2T || !hasCjk(text)) return text
+        val dictionary = getDictionary(type) ?: return when (type) {
+            T2S -> ChineseUtils.t2s(text)
+            else -> ChineseUtils.s2t(text)
+        }
+        val sb = StringBuilder(text.length)
+        convert(dictionary, text, sb)
+        return sb.toString()
+    }
+
+    /**
+     * 转换结果追加到[out],词典不可用时返回false
+     */
+    fun convert(text: CharSequence, type: Int, out: StringBuilder): Boolean {
+        val dictionary = getDictionary(type) ?: return false
+        convert(dictionary, text, out)
+        return true
+    }
+
+    /**
+     * 提前加载词典
+     */
+    fun preLoad(type: Int = AppConfig.chineseConverterType) {
+        if (type == T2S || type == S2T) {
+            getDictionary(type)
+        }
+    }
+
+    /**
+     * 释放词典,转换类型改变后调用
+     */
+    @Synchronized
+    fun release() {
+        dictionaries.clear()
+    }
+
+    private fun convert(dictionary: ChineseDictionary, text: CharSequence, out: StringBuilder) {
+        val length = text.length
+        if (length < PARALLEL_MIN_LENGTH || threadCount < 2) {
+            dictionary.convert(text, 0, length, out)
+            return
+        }
+        val bounds = splitChunks(text)
+        val chunkCount = bounds.size - 1
+        if (chunkCount < 2) {
+            dictionary.convert(text, 0, length, out)
+            return
+        }
+        val futures = arrayOfNulls<Future<StringBuilder>>(chunkCount)
+        for (i in 1 until chunkCount) {
+            val start = bounds[i]
+            val end = bounds[i + 1]
+            futures[i] = executor.submit<StringBuilder> {
+                StringBuilder(end - start).also { dictionary.convert(text, start, end, it) }
+            }
+        }
+        dictionary.convert(text, 0, bounds[1], out)
+        for (i in 1 until chunkCount) {
+            out.append(futures[i]!!.get())
+        }
+    }
+
+    @Synchronized
+    private fun getDictionary(type: Int): ChineseDictionary? {
+        if (dictionaries.containsKey(type)) {
+            return dictionaries[type]
+        }
+        val dictionary = kotlin.runCatching {
+            loadDictionary(type)
+        }.onFailure {
+            AppLog.put("简繁转换词典加载失败", it)
+        }.getOrNull()
+        dictionaries[type] = dictionary
+        return dictionary
+    }
+
+    private fun loadDictionary(type: Int): ChineseDictionary? {
+        val dir = dictDir ?: File(appCtx.filesDir, "chineseDict")
+        val file = File(dir, "${if (type == T2S) "t2s" else "s2t"}-$DICT_VERSION.dat")
+        if (file.exists()) {
+            ChineseDictionary.load(file)?.let {
+                return it
+            }
+            file.delete()
+        }
+        val entries = readSource(type)
+        if (entries == null) {
+            AppLog.put("未找到简繁转换词表,使用quick-transfer转换")
+            return null
+        }
+        dir.mkdirs()
+        //删除旧版本
+        dir.listFiles()?.forEach {
+            if (!it.name.endsWith("-$DICT_VERSION.dat")) it.delete()
+        }
+        val tmp = File(dir, "${file.name}.tmp")
+        tmp.writeBytes(ChineseDictionary.compile(entries))
+        if (!tmp.renameTo(file)) {
+            tmp.delete()
+            return null
+        }
+        return ChineseDictionary.load(file)
+    }
+
+    /**
+     * 读取词表,每行 词语 分隔符 转换结果,有多个结果时取第一个
+     */
+    private fun readSource(type: Int): Map<String, String>? {
+        val clazz = ChineseUtils::class.java
+        for (files in sourceFiles.getValue(type)) {
+            for (dir in sourceDirs) {
+                if (files.any { clazz.getResource(dir + it) == null }) continue
+                val entries = hashMapOf<String, String>()
+                files.forEach { name ->
+                    clazz.getResourceAsStream(dir + name)!!.bufferedReader().useLines { lines ->
+                        lines.forEach { line ->
+                            parseLine(line, entries)
+                        }
+                    }
+                }
+                return entries
+            }
+        }
+        return null
+    }
+
+    private fun parseLine(line: String, entries: HashMap<String, String>) {
+        if (line.isBlank() || line.startsWith("#")) return
+        val index = line.indexOfFirst { it == '\t' || it == '=' || it == ' ' || it == ':' }
+        if (index <= 0) return
+        val key = line.substring(0, index)
+        val value = line.substring(index + 1).trim().substringBefore(' ').substringBefore('\t')
+        if (value.isNotEmpty()) {
+            entries.putIfAbsent(key, value)
+        }
+    }
+
+    private fun hasCjk(text: CharSequence): Boolean {
+        for (c in text) {
+            if (c >= CJK_START) return true
+        }
+        return false
+    }
+
+    /**
+     * 在换行处切块,换行留在前一块
+     * @return 各块的起点,最后一个是文本长度
+     */
+    private fun splitChunks(text: CharSequence): IntArray {
+        val bounds = arrayListOf(0)
+        val length = text.length
+        var start = 0
+        while (start < length) {
+            var end = start + CHUNK_SIZE
+            if (end >= length) {
+                end = length
+            } else {
+                while (end < length && text[end] != '\n') end++
+                if (end < length) end++
+            }
+            bounds.add(end)
+            start = end
+        }
+        return bounds.toIntArray()
+    }
+
+}
@@ -0,0 +1,225 @@
+package io.legado.app.help
+
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.CharBuffer
+import java.nio.IntBuffer
+import java.nio.channels.FileChannel
+import kotlin.math.max
+
+/**
+ * 简繁转换词典,双数组字典树,正向最长匹配
+ * 二进制格式 MAGIC,数组长度,值数量,值字符数,base[],check[],value[],值偏移[],值字符[]
+ * 编译后的文件只读内存映射,转换时不创建对象
+ */
+class ChineseDictionary private constructor(buffer: ByteBuffer) {
+
+    companion object {
+        private const val MAGIC = 0x43445431
+        private const val HEADER_SIZE = 16
+
+        /**
+         * 读取编译好的词典文件,格式不对返回null
+         */
+        fun load(file: File): ChineseDictionary? {
+            RandomAccessFile(file, "r").use {
+                val length = it.length()
+                if (length < HEADER_SIZE) return null
+                val buffer = it.channel.map(FileChannel.MapMode.READ_ONLY, 0, length)
+                if (buffer.getInt(0) != MAGIC) return null
+                val size = buffer.getInt(4)
+                val valueCount = buffer.getInt(8)
+                val charCount = buffer.getInt(12)
+                if (size < 1 || valueCount < 0 || charCount < 0) return null
+                val expected = HEADER_SIZE + 12L * size + 4L * (valueCount + 1) + 2L * charCount
+                if (length != expected) return null
+                return ChineseDictionary(buffer)
+            }
+        }
+
+        /**
+         * 编译词典
+         * @param entries 词语到转换结果,单字和词组都在内
+         */
+        fun compile(entries: Map<String, String>): ByteArray {
+            return Builder(entries).build()
+        }
+    }
+
+    private val size: Int
+    private val base: IntBuffer
+    private val check: IntBuffer
+    private val value: IntBuffer
+    private val offsets: IntBuffer
+    private val chars: CharBuffer
+
+    init {
+        size = buffer.getInt(4)
+        val valueCount = buffer.getInt(8)
+        var position = HEADER_SIZE
+        base = buffer.sliceAt(position, size * 4).asIntBuffer()
+        position += size * 4
+        check = buffer.sliceAt(position, size * 4).asIntBuffer()
+        position += size * 4
+        value = buffer.sliceAt(position, size * 4).asIntBuffer()
+        position += size * 4
+        offsets = buffer.sliceAt(position, (valueCount + 1) * 4).asIntBuffer()
+        position += (valueCount + 1) * 4
+        chars = buffer.sliceAt(position, buffer.limit() - position).asCharBuffer()
+    }
+
+    private fun ByteBuffer.sliceAt(position: Int, length: Int): ByteBuffer {
+        val duplicate = duplicate()
+        duplicate.position(position)
+        duplicate.limit(position + length)
+        return duplicate.slice()
+    }
+
+    /**
+     * 转换[text]的[start]到[end]部分,结果追加到[out]
+     */
+    fun convert(text: CharSequence, start: Int, end: Int, out: StringBuilder) {
+        var i = start
+        while (i < end) {
+            var state = 0
+            var j = i
+            var matchEnd = -1
+            var matchValue = -1
+            while (j < end) {
+                val next = base[state] + text[j].code
+                if (next <= 0 || next >= size || check[next] != state + 1) break
+                state = next
+                j++
+                val v = value[state]
+                if (v >= 0) {
+                    matchEnd = j
+                    matchValue = v
+                }
+            }
+            if (matchValue < 0) {
+                out.append(text[i])
+                i++
+            } else {
+                for (k in offsets[matchValue] until offsets[matchValue + 1]) {
+                    out.append(chars[k])
+                }
+                i = matchEnd
+            }
+        }
+    }
+
+    /**
+     * 按排序后的词语逐层构建,子节点位置为 base[父节点] + 字符,check[子节点] = 父节点 + 1
+     */
+    private class Builder(entries: Map<String, String>) {
+
+        private val keys = entries.keys.filter { it.isNotEmpty() }.sorted()
+        private val keyValues = IntArray(keys.size)
+        private val valueChars = StringBuilder()
+        private val valueOffsets = arrayListOf(0)
+        private var base = IntArray(1024)
+        private var check = IntArray(1024)
+        private var value = IntArray(1024) { -1 }
+        private var used = BooleanArray(1024)
+        private var size = 1
+        private var firstFree = 1
+
+        init {
+            val valueIndex = hashMapOf<String, Int>()
+            keys.forEachIndexed { i, key ->
+                val v = entries.getValue(key)
+                keyValues[i] = valueIndex.getOrPut(v) {
+                    valueChars.append(v)
+                    valueOffsets.add(valueChars.length)
+                    valueOffsets.size - 2
+                }
+            }
+            used[0] = true
+        }
+
+        fun build(): ByteArray {
+            val queue = ArrayDeque<IntArray>()
+            if (keys.isNotEmpty()) {
+                queue.add(intArrayOf(0, 0, keys.size, 0))
+            }
+            val codes = ArrayList<Int>()
+            val ranges = ArrayList<Int>()
+            while (queue.isNotEmpty()) {
+                val (state, left, right, depth) = queue.removeFirst()
+                var i = left
+                if (keys[i].length == depth) {
+                    value[state] = keyValues[i]
+                    i++
+                }
+                codes.clear()
+                ranges.clear()
+                while (i < right) {
+                    val c = keys[i][depth]
+                    var j = i + 1
+                    while (j < right && keys[j][depth] == c) j++
+                    codes.add(c.code)
+                    ranges.add(i)
+                    ranges.add(j)
+                    i = j
+                }
+                if (codes.isEmpty()) continue
+                val b = findBase(codes)
+                base[state] = b
+                codes.forEachIndexed { k, code ->
+                    val t = b + code
+                    used[t] = true
+                    check[t] = state + 1
+                    size = max(size, t + 1)
+                    queue.add(intArrayOf(t, ranges[k * 2], ranges[k * 2 + 1], depth + 1))
+                }
+                while (firstFree < used.size && used[firstFree]) firstFree++
+            }
+            return write()
+        }
+
+        private fun findBase(codes: List<Int>): Int {
+            val first = codes.first()
+            val span = codes.last() - first
+            var p = firstFree
+            while (true) {
+                ensureCapacity(p + span + 1)
+                if (!used[p]) {
+                    val b = p - first
+                    if (codes.all { !used[b + it] }) return b
+                }
+                p++
+            }
+        }
+
+        private fun ensureCapacity(capacity: Int) {
+            if (capacity <= used.size) return
+            val newSize = max(capacity, used.size * 2)
+            val oldSize = used.size
+            base = base.copyOf(newSize)
+            check = check.copyOf(newSize)
+            value = value.copyOf(newSize)
+            value.fill(-1, oldSize, newSize)
+            used = used.copyOf(newSize)
+        }
+
+        private fun write(): ByteArray {
+            val valueCount = valueOffsets.size - 1
+            val buffer = ByteBuffer.allocate(
+                HEADER_SIZE + 12 * size + 4 * (valueCount + 1) + 2 * valueChars.length
+            )
+            buffer.putInt(MAGIC)
+            buffer.putInt(size)
+            buffer.putInt(valueCount)
+            buffer.putInt(valueChars.length)
+            for (i in 0 until size) buffer.putInt(base[i])
+            for (i in 0 until size) buffer.putInt(check[i])
+            for (i in 0 until size) buffer.putInt(value[i])
+            valueOffsets.forEach { buffer.putInt(it) }
+            for (c in valueChars) buffer.putChar(c)
+            return buffer.array()
+        }
+
+    }
+
+}
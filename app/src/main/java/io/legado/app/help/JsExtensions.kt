@@ -6,7 +6,6 @@ import androidx.annotation.Keep
 import cn.hutool.core.codec.Base64
 import cn.hutool.core.util.HexUtil
 import com.github.khoben.libwoff2dec.Woff2Decoder
-import com.github.liuyueyi.quick.transfer.ChineseUtils
 import io.legado.app.constant.AppConst
 import io.legado.app.constant.AppConst.dateFormat
 import io.legado.app.constant.AppLog
@@ -628,11 +627,11 @@ interface JsExtensions : JsEncodeUtils {
     }
 
     fun t2s(text: String): String {
-        return ChineseUtils.t2s(text)
+        return ChineseConverter.t2s(text)
     }
 
     fun s2t(text: String): String {
-        return ChineseUtils.s2t(text)
+        return ChineseConverter.s2t(text)
     }
 
     fun getWebViewUA(): String {
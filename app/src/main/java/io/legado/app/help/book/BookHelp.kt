@@ -11,8 +11,10 @@ import io.legado.app.data.entities.Book
 import io.legado.app.data.entities.BookChapter
 import io.legado.app.data.entities.BookSource
 import io.legado.app.exception.NoStackTraceException
+import io.legado.app.help.config.AppConfig
 import io.legado.app.model.analyzeRule.AnalyzeUrl
 import io.legado.app.model.localBook.LocalBook
+import io.legado.app.ui.book.read.page.provider.ChapterLayoutCache
 import io.legado.app.utils.*
 import kotlinx.coroutines.*
 import kotlinx.coroutines.Dispatchers.IO
@@ -41,6 +43,10 @@ object BookHelp {
     val cachePath = FileUtils.getPath(downloadDir, cacheFolderName)
 
     fun clearCache() {
+        ChapterPack.closeAll()
+        ChapterCompress.clearDict()
+        ProcessedContentCache.clear()
+        ChapterLayoutCache.clear()
         FileUtils.delete(
             FileUtils.getPath(downloadDir, cacheFolderName)
         )
@@ -48,6 +54,9 @@ object BookHelp {
 
     fun clearCache(book: Book) {
         val filePath = FileUtils.getPath(downloadDir, cacheFolderName, book.getFolderName())
+        ChapterPack.close(filePath)
+        ChapterCompress.clearDict(filePath)
+        ProcessedContentCache.clear(filePath)
         FileUtils.delete(filePath)
     }
 
@@ -65,6 +74,12 @@ object BookHelp {
             cacheFolderName,
             newFolderName
         )
+        ChapterPack.close(oldFolderPath)
+        ChapterPack.close(newFolderPath)
+        ChapterCompress.clearDict(oldFolderPath)
+        ChapterCompress.clearDict(newFolderPath)
+        ProcessedContentCache.clear(oldFolderPath)
+        ProcessedContentCache.clear(newFolderPath)
         FileUtils.move(oldFolderPath, newFolderPath)
     }
 
@@ -82,6 +97,9 @@ object BookHelp {
             downloadDir.getFile(cacheFolderName)
                 .listFiles()?.forEach { bookFile ->
                     if (!bookFolderNames.contains(bookFile.name)) {
+                        ChapterPack.close(bookFile.absolutePath)
+                        ChapterCompress.clearDict(bookFile.absolutePath)
+                        ProcessedContentCache.clear(bookFile.absolutePath)
                         FileUtils.delete(bookFile.absolutePath)
                     }
                 }
@@ -121,13 +139,50 @@ object BookHelp {
         content: String
     ) {
         if (content.isEmpty()) return
+        if (AppConfig.packChapterCache) {
+            //保存到打包存储,删除旧的单章文件
+            getChapterPack(book, true)!!.put(bookChapter.getFileName(), encodeText(book, content))
+            getChapterFile(book, bookChapter).delete()
+            return
+        }
         //保存文本
+        getChapterPack(book, false)?.remove(bookChapter.getFileName())
         FileUtils.createFileIfNotExist(
             downloadDir,
             cacheFolderName,
             book.getFolderName(),
             bookChapter.getFileName(),
-        ).writeText(content)
+        ).writeBytes(encodeText(book, content))
+    }
+
+    /**
+     * 章节正文转为缓存数据,开启压缩时压缩
+     */
+    private fun encodeText(book: Book, content: String): ByteArray {
+        if (AppConfig.compressChapterCache) {
+            return ChapterCompress.compress(getBookCacheDir(book), content)
+        }
+        return content.toByteArray()
+    }
+
+    fun getBookCacheDir(book: Book): File {
+        return downloadDir.getFile(cacheFolderName, book.getFolderName())
+    }
+
+    /**
+     * 获取书籍的章节打包存储
+     * @param create 不存在时是否创建
+     */
+    private fun getChapterPack(book: Book, create: Boolean): ChapterPack? {
+        return ChapterPack.get(getBookCacheDir(book), create)
+    }
+
+    private fun getChapterFile(book: Book, bookChapter: BookChapter): File {
+        return downloadDir.getFile(
+            cacheFolderName,
+            book.getFolderName(),
+            bookChapter.getFileName()
+        )
     }
 
     suspend fun saveImages(
@@ -250,8 +305,16 @@ object BookHelp {
         FileUtils.createFolderIfNotExist(
             downloadDir,
             subDirs = arrayOf(cacheFolderName, book.getFolderName())
-        ).list()?.let {
-            fileNames.addAll(it)
+        ).list()?.forEach {
+            if (!ChapterPack.isPackFile(it)
+                && !it.startsWith(ChapterCompress.DICT_FILE_NAME)
+                && it != ProcessedContentCache.DIR_NAME
+            ) {
+                fileNames.add(it)
+            }
+        }
+        getChapterPack(book, false)?.let {
+            fileNames.addAll(it.keys())
         }
         return fileNames
     }
@@ -265,11 +328,8 @@ object BookHelp {
         ) {
             true
         } else {
-            downloadDir.exists(
-                cacheFolderName,
-                book.getFolderName(),
-                bookChapter.getFileName()
-            )
+            getChapterPack(book, false)?.contains(bookChapter.getFileName()) == true
+                    || getChapterFile(book, bookChapter).exists()
         }
     }
 
@@ -319,13 +379,31 @@ object BookHelp {
      * 读取章节内容
      */
     fun getContent(book: Book, bookChapter: BookChapter): String? {
-        val file = downloadDir.getFile(
-            cacheFolderName,
-            book.getFolderName(),
-            bookChapter.getFileName()
-        )
+        val pack = getChapterPack(book, AppConfig.packChapterCache)
+        pack?.get(bookChapter.getFileName())?.let {
+            ChapterCompress.decode(getBookCacheDir(book), it)?.let { text ->
+                return text
+            }
+            //字典丢失或数据损坏无法解压,删除后按未缓存处理
+            AppLog.put("章节缓存无法读取,将重新下载 ${book.name} ${bookChapter.title}")
+            pack.remove(bookChapter.getFileName())
+        }
+        val file = getChapterFile(book, bookChapter)
         if (file.exists()) {
-            return file.readText()
+            val text = file.inputStream().use {
+                ChapterCompress.decode(getBookCacheDir(book), it)
+            }
+            if (text == null) {
+                AppLog.put("章节缓存无法读取,将重新下载 ${book.name} ${bookChapter.title}")
+                file.delete()
+            } else {
+                if (pack != null && AppConfig.packChapterCache && text.isNotEmpty()) {
+                    //开启打包存储时迁移单章文件,关闭后已有的打包数据只读不再迁入
+                    pack.put(bookChapter.getFileName(), encodeText(book, text))
+                    file.delete()
+                }
+                return text
+            }
         }
         if (book.isLocal) {
             val string = LocalBook.getContent(book, bookChapter)
@@ -341,12 +419,8 @@ object BookHelp {
      * 删除章节内容
      */
     fun delContent(book: Book, bookChapter: BookChapter) {
-        FileUtils.createFileIfNotExist(
-            downloadDir,
-            cacheFolderName,
-            book.getFolderName(),
-            bookChapter.getFileName()
-        ).delete()
+        getChapterPack(book, false)?.remove(bookChapter.getFileName())
+        getChapterFile(book, bookChapter).delete()
     }
 
     /**
@@ -355,37 +429,55 @@ object BookHelp {
     fun setRemoveSameTitle(book: Book, bookChapter: BookChapter, removeSameTitle: Boolean) {
         val fileName = bookChapter.getFileName("nr")
         val contentProcessor = ContentProcessor.get(book)
-        if (removeSameTitle) {
-            val path = FileUtils.getPath(
-                downloadDir,
-                cacheFolderName,
-                book.getFolderName(),
-                fileName
-            )
+        val changed = if (removeSameTitle) {
             contentProcessor.removeSameTitleCache.remove(fileName)
-            File(path).delete()
         } else {
-            FileUtils.createFileIfNotExist(
-                downloadDir,
-                cacheFolderName,
-                book.getFolderName(),
-                fileName
-            )
             contentProcessor.removeSameTitleCache.add(fileName)
         }
+        if (changed) {
+            saveKeepSameTitle(book, contentProcessor.removeSameTitleCache)
+        }
     }
 
     /**
      * 获取是否去除重复标题
      */
     fun removeSameTitle(book: Book, bookChapter: BookChapter): Boolean {
-        val path = FileUtils.getPath(
-            downloadDir,
-            cacheFolderName,
-            book.getFolderName(),
-            bookChapter.getFileName("nr")
-        )
-        return !File(path).exists()
+        return !ContentProcessor.get(book).removeSameTitleCache
+            .contains(bookChapter.getFileName("nr"))
+    }
+
+    /**
+     * 读取不去除重复标题的章节,保存在章节缓存索引旁的标记文件
+     * 旧版本每章一个.nr标记文件,标记文件不存在时扫描一次目录迁移,没有标记也写入空文件
+     */
+    @Synchronized
+    fun loadKeepSameTitle(book: Book): Set<String> {
+        val dir = getBookCacheDir(book)
+        val file = File(dir, ChapterPack.FLAGS_FILE_NAME)
+        if (file.exists()) {
+            return file.readLines().filterTo(hashSetOf()) { it.isNotEmpty() }
+        }
+        if (!dir.exists()) {
+            return emptySet()
+        }
+        val markers = dir.listFiles { _, name -> name.endsWith(".nr") }.orEmpty()
+        val names = markers.mapTo(hashSetOf()) { it.name }
+        saveKeepSameTitle(book, names)
+        markers.forEach { it.delete() }
+        return names
+    }
+
+    /**
+     * 标记为空也保留文件,表示已迁移
+     */
+    @Synchronized
+    private fun saveKeepSameTitle(book: Book, names: Set<String>) {
+        val dir = getBookCacheDir(book)
+        dir.mkdirs()
+        val tmp = File(dir, ChapterPack.FLAGS_FILE_NAME + ".tmp")
+        tmp.writeText(names.joinToString("\n"))
+        tmp.renameTo(File(dir, ChapterPack.FLAGS_FILE_NAME))
     }
 
     /**
@@ -0,0 +1,226 @@
+package io.legado.app.help.book
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.EOFException
+import java.io.InputStream
+import java.util.concurrent.ConcurrentHashMap
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.Inflater
+
+/**
+ * 章节缓存压缩,deflate加每本书的预置字典
+ * 压缩数据以[MAGIC]开头,没有头的数据按明文UTF-8读取
+ */
+object ChapterCompress {
+
+    const val DICT_FILE_NAME = "content.dict"
+
+    private val MAGIC = byteArrayOf(0, 'L'.code.toByte(), 'Z'.code.toByte(), 1)
+    private const val FLAG_DICT = 1
+
+    /**
+     * deflate窗口32K,字典再大也用不上
+     */
+    private const val DICT_SIZE = 32 * 1024
+
+    /**
+     * 小于此长度的章节使用字典压缩
+     */
+    private const val SMALL_CHAPTER_SIZE = 32 * 1024
+
+    /**
+     * 字典取样的章节数,每章取末尾一段
+     */
+    private const val SAMPLE_CHAPTERS = 8
+    private const val SAMPLE_SIZE = DICT_SIZE / SAMPLE_CHAPTERS
+
+    private val dictMap = ConcurrentHashMap<String, ByteArray>()
+    private val sampleMap = hashMapOf<String, ArrayList<ByteArray>>()
+
+    fun isCompressed(bytes: ByteArray): Boolean {
+        if (bytes.size < MAGIC.size + 1) return false
+        for (i in MAGIC.indices) {
+            if (bytes[i] != MAGIC[i]) return false
+        }
+        return true
+    }
+
+    /**
+     * 压缩章节正文,字典的样本未凑够前不使用字典
+     */
+    fun compress(dir: File, text: String): ByteArray {
+        val bytes = text.toByteArray()
+        val dict = if (bytes.size < SMALL_CHAPTER_SIZE) getOrTrainDict(dir, bytes) else null
+        val out = ByteArrayOutputStream(bytes.size / 3 + 16)
+        out.write(MAGIC)
+        out.write(if (dict != null) FLAG_DICT else 0)
+        val deflater = Deflater(Deflater.BEST_COMPRESSION)
+        try {
+            dict?.let { deflater.setDictionary(it) }
+            DeflaterOutputStream(out, deflater).use {
+                it.write(bytes)
+            }
+        } finally {
+            deflater.end()
+        }
+        return out.toByteArray()
+    }
+
+    /**
+     * 读取章节数据,兼容明文,字典丢失或数据损坏时返回null
+     */
+    fun decode(dir: File, bytes: ByteArray): String? {
+        if (!isCompressed(bytes)) {
+            return String(bytes)
+        }
+        return decode(dir, ByteArrayInputStream(bytes))
+    }
+
+    /**
+     * 流式读取章节数据,兼容明文,字典丢失或数据损坏时返回null
+     */
+    fun decode(dir: File, input: InputStream): String? {
+        val head = ByteArray(MAGIC.size + 1)
+        val headSize = input.readHead(head)
+        val headBytes = head.copyOf(headSize)
+        if (!isCompressed(headBytes)) {
+            return String(headBytes + input.readBytes())
+        }
+        val dict = if (head[MAGIC.size].toInt() and FLAG_DICT != 0) {
+            getDict(dir) ?: return null
+        } else null
+        val inflater = Inflater()
+        try {
+            return DictInflaterInputStream(input, inflater, dict)
+                .bufferedReader()
+                .readText()
+        } catch (_: DataFormatException) {
+            //数据损坏
+        } catch (_: EOFException) {
+            //数据不完整
+        } catch (_: IllegalArgumentException) {
+            //字典与压缩时不一致
+        } finally {
+            inflater.end()
+        }
+        return null
+    }
+
+    @Synchronized
+    fun clearDict(dirPath: String) {
+        val path = File(dirPath).absolutePath
+        dictMap.remove(path)
+        sampleMap.remove(path)
+    }
+
+    @Synchronized
+    fun clearDict() {
+        dictMap.clear()
+        sampleMap.clear()
+    }
+
+    private fun getDict(dir: File): ByteArray? {
+        dictMap[dir.absolutePath]?.let {
+            return it
+        }
+        val file = File(dir, DICT_FILE_NAME)
+        if (!file.exists()) return null
+        val dict = file.readBytes()
+        if (dict.size != DICT_SIZE) {
+            //写入不完整的字典不能用,删除后重新训练,用它压缩的章节按未缓存处理
+            file.delete()
+            return null
+        }
+        dictMap[dir.absolutePath] = dict
+        return dict
+    }
+
+    /**
+     * 从前[SAMPLE_CHAPTERS]个章节末尾各取一段拼成字典,人名和常用语会在后续章节重复出现
+     * 这只是经验做法,没有统计子串频率,凑够样本前的章节不用字典压缩
+     * 字典一旦写入不再修改,否则旧数据无法解压
+     */
+    @Synchronized
+    private fun getOrTrainDict(dir: File, chapter: ByteArray): ByteArray? {
+        getDict(dir)?.let {
+            return it
+        }
+        if (chapter.size < SAMPLE_SIZE) return null
+        val path = dir.absolutePath
+        val samples = sampleMap.getOrPut(path) { arrayListOf() }
+        samples.add(chapter.copyOfRange(chapter.size - SAMPLE_SIZE, chapter.size))
+        if (samples.size < SAMPLE_CHAPTERS) return null
+        sampleMap.remove(path)
+        //越靠后的内容在字典里离待压缩数据越近,匹配距离越短
+        val dict = ByteArray(DICT_SIZE)
+        samples.forEachIndexed { i, sample ->
+            sample.copyInto(dict, i * SAMPLE_SIZE)
+        }
+        dir.mkdirs()
+        val tmp = File(dir, "$DICT_FILE_NAME.tmp")
+        tmp.writeBytes(dict)
+        if (!tmp.renameTo(File(dir, DICT_FILE_NAME))) {
+            tmp.delete()
+            return null
+        }
+        dictMap[path] = dict
+        return dict
+    }
+
+    private fun InputStream.readHead(buffer: ByteArray): Int {
+        var n = 0
+        while (n < buffer.size) {
+            val count = read(buffer, n, buffer.size - n)
+            if (count < 0) break
+            n += count
+        }
+        return n
+    }
+
+    /**
+     * 流式解压,需要字典时设置预置字典
+     */
+    private class DictInflaterInputStream(
+        private val input: InputStream,
+        private val inflater: Inflater,
+        private val dict: ByteArray?
+    ) : InputStream() {
+
+        private val buffer = ByteArray(8192)
+        private val single = ByteArray(1)
+
+        override fun read(): Int {
+            return if (read(single, 0, 1) < 0) -1 else single[0].toInt() and 0xff
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (len == 0) return 0
+            while (true) {
+                val count = inflater.inflate(b, off, len)
+                if (count > 0) return count
+                when {
+                    inflater.finished() -> return -1
+                    inflater.needsDictionary() -> inflater.setDictionary(
+                        dict ?: throw IllegalStateException("缺少章节缓存字典")
+                    )
+
+                    inflater.needsInput() -> {
+                        val size = input.read(buffer)
+                        if (size < 0) throw EOFException("章节缓存数据不完整")
+                        inflater.setInput(buffer, 0, size)
+                    }
+                }
+            }
+        }
+
+        override fun close() {
+            input.close()
+        }
+
+    }
+
+}
@@ -0,0 +1,73 @@
+package io.legado.app.help.book
+
+import java.util.BitSet
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 章节序号集合,位图存储,连续区间只占很少内存
+ * 写操作需由调用方同步,[size]可无锁读取
+ * @param total 全局计数,集合大小变化时同步增减
+ */
+class ChapterIndexSet(private val total: AtomicInteger? = null) {
+
+    private val bits = BitSet()
+
+    @Volatile
+    var size = 0
+        private set
+
+    fun isEmpty(): Boolean = size == 0
+
+    fun isNotEmpty(): Boolean = size > 0
+
+    operator fun contains(index: Int): Boolean {
+        return index >= 0 && bits[index]
+    }
+
+    /**
+     * 最小的章节序号,为空时返回null
+     */
+    fun firstOrNull(): Int? {
+        val index = bits.nextSetBit(0)
+        return if (index < 0) null else index
+    }
+
+    fun add(index: Int): Boolean {
+        if (index < 0 || bits[index]) return false
+        bits.set(index)
+        changeSize(1)
+        return true
+    }
+
+    /**
+     * 添加区间[start, end],跳过[exclude]中已有的序号
+     */
+    fun addRange(start: Int, end: Int, exclude: ChapterIndexSet? = null) {
+        val from = start.coerceAtLeast(0)
+        if (end < from) return
+        val range = BitSet(end + 1)
+        range.set(from, end + 1)
+        exclude?.let { range.andNot(it.bits) }
+        bits.or(range)
+        changeSize(bits.cardinality() - size)
+    }
+
+    fun remove(index: Int): Boolean {
+        if (index < 0 || !bits[index]) return false
+        bits.clear(index)
+        changeSize(-1)
+        return true
+    }
+
+    fun clear() {
+        bits.clear()
+        changeSize(-size)
+    }
+
+    private fun changeSize(delta: Int) {
+        if (delta == 0) return
+        size += delta
+        total?.addAndGet(delta)
+    }
+
+}
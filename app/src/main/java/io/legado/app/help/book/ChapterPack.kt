@@ -0,0 +1,360 @@
+package io.legado.app.help.book
+
+import io.legado.app.constant.AppLog
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.DataOutput
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+import java.util.zip.CRC32
+
+/**
+ * 章节正文打包存储,每本书一个只追加写入的数据文件加一个索引文件
+ * 索引记录 章节key -> 偏移,长度,校验和,标志位,读取按偏移直接读数据文件
+ * 两个文件开头都有代数,打开时不一致说明索引和数据不配套,整个丢弃
+ * 被覆盖或删除的数据超过有效数据时自动压缩整理,整理后代数加一,先替换数据文件再替换索引
+ */
+class ChapterPack private constructor(private val dir: File) : Closeable {
+
+    companion object {
+        const val DATA_FILE_NAME = "content.pack"
+        const val INDEX_FILE_NAME = "content.idx"
+
+        /**
+         * 章节标记,和索引放在一起,不参与代数校验
+         */
+        const val FLAGS_FILE_NAME = "content.flags"
+        private const val TMP_SUFFIX = ".tmp"
+
+        private const val MAGIC = 0x4C504B31
+
+        /**
+         * 文件头 MAGIC + 代数
+         */
+        private const val HEADER_SIZE = 12L
+
+        /**
+         * 标志位,章节已删除
+         */
+        private const val FLAG_DELETED = 1
+
+        /**
+         * 废弃数据小于此值时不整理
+         */
+        private const val COMPACT_MIN_BYTES = 1024 * 1024L
+
+        private val packMap = ConcurrentHashMap<String, ChapterPack>()
+
+        /**
+         * 获取书籍缓存目录对应的打包存储
+         * @param create 不存在时是否创建
+         */
+        fun get(dir: File, create: Boolean): ChapterPack? {
+            packMap[dir.absolutePath]?.let {
+                return it
+            }
+            if (!create && !File(dir, INDEX_FILE_NAME).exists()) {
+                return null
+            }
+            return packMap.getOrPut(dir.absolutePath) { ChapterPack(dir) }
+        }
+
+        fun isPackFile(fileName: String): Boolean {
+            val name = fileName.removeSuffix(TMP_SUFFIX)
+            return name == DATA_FILE_NAME || name == INDEX_FILE_NAME || name == FLAGS_FILE_NAME
+        }
+
+        /**
+         * 关闭目录下的打包存储,删除或移动目录前调用
+         */
+        fun close(dirPath: String) {
+            packMap.remove(File(dirPath).absolutePath)?.close()
+        }
+
+        fun closeAll() {
+            packMap.values.forEach { it.close() }
+            packMap.clear()
+        }
+    }
+
+    private class Entry(
+        val offset: Long,
+        val length: Int,
+        val checksum: Int,
+        val flags: Int
+    )
+
+    private val dataFile = File(dir, DATA_FILE_NAME)
+    private val indexFile = File(dir, INDEX_FILE_NAME)
+    private val tmpDataFile = File(dir, DATA_FILE_NAME + TMP_SUFFIX)
+    private val tmpIndexFile = File(dir, INDEX_FILE_NAME + TMP_SUFFIX)
+    private val entries = HashMap<String, Entry>()
+    private var data: RandomAccessFile? = null
+    private var indexOut: DataOutputStream? = null
+    private var generation = 0L
+    private var liveBytes = 0L
+    private var deadBytes = 0L
+
+    init {
+        loadIndex()
+    }
+
+    @Synchronized
+    fun contains(key: String): Boolean {
+        return entries.containsKey(key)
+    }
+
+    @Synchronized
+    fun keys(): Set<String> {
+        return entries.keys.toHashSet()
+    }
+
+    @Synchronized
+    fun getFlags(key: String): Int? {
+        return entries[key]?.flags
+    }
+
+    /**
+     * 读取章节数据,校验失败时删除该章节并返回null
+     */
+    @Synchronized
+    fun get(key: String): ByteArray? {
+        val entry = entries[key] ?: return null
+        val channel = openData().channel
+        if (channel.size() < entry.offset + entry.length) {
+            remove(key)
+            return null
+        }
+        val bytes = ByteArray(entry.length)
+        val buffer = ByteBuffer.wrap(bytes)
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, entry.offset + buffer.position()) < 0) break
+        }
+        if (buffer.hasRemaining() || checksum(bytes) != entry.checksum) {
+            AppLog.put("章节缓存校验失败 ${dir.name} $key")
+            remove(key)
+            return null
+        }
+        return bytes
+    }
+
+    @Synchronized
+    fun put(key: String, bytes: ByteArray, flags: Int = 0) {
+        val raf = openData()
+        val offset = raf.length()
+        raf.seek(offset)
+        raf.write(bytes)
+        val entry = Entry(offset, bytes.size, checksum(bytes), flags)
+        writeIndex(key, entry)
+        entries.put(key, entry)?.let {
+            liveBytes -= it.length
+            deadBytes += it.length
+        }
+        liveBytes += entry.length
+        compactIfNeeded()
+    }
+
+    @Synchronized
+    fun remove(key: String) {
+        val entry = entries.remove(key) ?: return
+        writeIndex(key, Entry(0, 0, 0, FLAG_DELETED))
+        liveBytes -= entry.length
+        deadBytes += entry.length
+        compactIfNeeded()
+    }
+
+    /**
+     * 重写数据文件,只保留有效章节
+     * 新文件代数加一,先替换数据文件再替换索引,中途中断时打开时按临时索引恢复
+     */
+    @Synchronized
+    fun compact() {
+        val newGeneration = generation + 1
+        val newEntries = HashMap<String, Entry>()
+        val source = openData()
+        DataOutputStream(BufferedOutputStream(FileOutputStream(tmpDataFile))).use { dataOut ->
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tmpIndexFile))).use { indexOut ->
+                writeHeader(dataOut, newGeneration)
+                writeHeader(indexOut, newGeneration)
+                var offset = HEADER_SIZE
+                entries.forEach { (key, entry) ->
+                    val bytes = ByteArray(entry.length)
+                    source.seek(entry.offset)
+                    source.readFully(bytes)
+                    dataOut.write(bytes)
+                    val newEntry = Entry(offset, entry.length, entry.checksum, entry.flags)
+                    writeIndex(indexOut, key, newEntry)
+                    newEntries[key] = newEntry
+                    offset += entry.length
+                }
+            }
+        }
+        close()
+        if (!tmpDataFile.renameTo(dataFile)) {
+            tmpDataFile.delete()
+            tmpIndexFile.delete()
+            throw IOException("替换数据文件失败")
+        }
+        if (!tmpIndexFile.renameTo(indexFile)) {
+            //数据已经是新的,旧索引不能再用
+            entries.clear()
+            liveBytes = 0
+            deadBytes = 0
+            deleteFiles()
+            throw IOException("替换索引文件失败,已清空章节缓存")
+        }
+        generation = newGeneration
+        entries.clear()
+        entries.putAll(newEntries)
+        deadBytes = 0
+    }
+
+    @Synchronized
+    override fun close() {
+        kotlin.runCatching {
+            indexOut?.close()
+            data?.close()
+        }
+        indexOut = null
+        data = null
+    }
+
+    private fun compactIfNeeded() {
+        if (deadBytes > COMPACT_MIN_BYTES && deadBytes > liveBytes) {
+            kotlin.runCatching {
+                compact()
+            }.onFailure {
+                AppLog.put("整理章节缓存出错 ${dir.name}\n${it.localizedMessage}", it)
+            }
+        }
+    }
+
+    private fun loadIndex() {
+        recoverCompact()
+        if (!indexFile.exists()) {
+            //没有索引的数据无法读取
+            dataFile.delete()
+            return
+        }
+        val dataGeneration = readGeneration(dataFile)
+        val indexGeneration = readGeneration(indexFile)
+        if (dataGeneration == null || dataGeneration != indexGeneration) {
+            AppLog.put("章节缓存索引和数据不匹配,已清空 ${dir.name}")
+            deleteFiles()
+            return
+        }
+        generation = dataGeneration
+        val dataLength = dataFile.length()
+        DataInputStream(BufferedInputStream(FileInputStream(indexFile))).use { input ->
+            input.skipBytes(HEADER_SIZE.toInt())
+            try {
+                while (true) {
+                    val key = input.readUTF()
+                    val flags = input.readInt()
+                    val entry = Entry(input.readLong(), input.readInt(), input.readInt(), flags)
+                    val old = if (flags and FLAG_DELETED != 0) {
+                        entries.remove(key)
+                    } else if (entry.offset + entry.length > dataLength) {
+                        //数据未完整写入
+                        continue
+                    } else {
+                        liveBytes += entry.length
+                        entries.put(key, entry)
+                    }
+                    old?.let {
+                        liveBytes -= it.length
+                        deadBytes += it.length
+                    }
+                }
+            } catch (_: EOFException) {
+                //索引末尾可能存在未写完的记录,忽略
+            }
+        }
+    }
+
+    /**
+     * 整理时替换完数据文件后中断,临时索引和数据代数一致时用临时索引,否则丢弃临时文件
+     */
+    private fun recoverCompact() {
+        if (tmpIndexFile.exists()) {
+            val tmpGeneration = readGeneration(tmpIndexFile)
+            if (tmpGeneration != null
+                && tmpGeneration == readGeneration(dataFile)
+                && tmpGeneration != readGeneration(indexFile)
+                && !tmpDataFile.exists()
+            ) {
+                tmpIndexFile.renameTo(indexFile)
+            }
+        }
+        tmpDataFile.delete()
+        tmpIndexFile.delete()
+    }
+
+    private fun readGeneration(file: File): Long? {
+        if (file.length() < HEADER_SIZE) return null
+        return kotlin.runCatching {
+            DataInputStream(FileInputStream(file)).use {
+                if (it.readInt() == MAGIC) it.readLong() else null
+            }
+        }.getOrNull()
+    }
+
+    private fun writeHeader(out: DataOutput, generation: Long) {
+        out.writeInt(MAGIC)
+        out.writeLong(generation)
+    }
+
+    private fun deleteFiles() {
+        close()
+        dataFile.delete()
+        indexFile.delete()
+    }
+
+    private fun openData(): RandomAccessFile {
+        data?.let { return it }
+        dir.mkdirs()
+        return RandomAccessFile(dataFile, "rw").also {
+            if (it.length() == 0L) {
+                writeHeader(it, generation)
+            }
+            data = it
+        }
+    }
+
+    private fun writeIndex(key: String, entry: Entry) {
+        val out = indexOut ?: run {
+            dir.mkdirs()
+            val isNew = indexFile.length() == 0L
+            DataOutputStream(FileOutputStream(indexFile, true)).also {
+                if (isNew) writeHeader(it, generation)
+                indexOut = it
+            }
+        }
+        writeIndex(out, key, entry)
+        out.flush()
+    }
+
+    private fun writeIndex(out: DataOutputStream, key: String, entry: Entry) {
+        out.writeUTF(key)
+        out.writeInt(entry.flags)
+        out.writeLong(entry.offset)
+        out.writeInt(entry.length)
+        out.writeInt(entry.checksum)
+    }
+
+    private fun checksum(bytes: ByteArray): Int {
+        val crc = CRC32()
+        crc.update(bytes)
+        return crc.value.toInt()
+    }
+
+}
@@ -3,68 +3,274 @@ package io.legado.app.help.book
 import java.util.regex.Pattern
 import kotlin.math.max
 import kotlin.math.min
+import kotlin.random.Random
 
 @Suppress("SameParameterValue", "RegExpRedundantEscape")
 object ContentHelp {
 
     /**
      * 段落重排算法入口。把整篇内容输入，连接错误的分段，再把每个段落调用其他方法重新切分
+     * 引号和换行的规整都是逐字符扫描完成的，结果与原先的正则替换链一致
      *
      * @param content     正文
      * @param chapterName 标题
+     * @param random      随机分段使用的随机数
      * @return
      */
-    fun reSegment(content: String, chapterName: String): String {
-        var content1 = content
-        val dict = makeDict(content1)
-        var p = content1
-            .replace("&quot;".toRegex(), "“")
-            .replace("[:：]['\"‘”“]+".toRegex(), "：“")
-            .replace("[\"”“]+[\\s]*[\"”“][\\s\"”“]*".toRegex(), "”\n“")
-            .split("\n(\\s*)".toRegex()).toTypedArray()
-
+    fun reSegment(content: String, chapterName: String, random: Random = Random): String {
+        val dict = makeDict(content)
+        val content1 = content.replace("&quot;", "“")
         //初始化StringBuilder的长度,在原content的长度基础上做冗余
-        var buffer = StringBuilder((content1.length * 1.15).toInt())
-        //          章节的文本格式为章节标题-空行-首段，所以处理段落时需要略过第一行文本。
-        buffer.append(" ")
-        if (chapterName.trim { it <= ' ' } != p[0].trim { it <= ' ' }) {
-            // 去除段落内空格。unicode 3000 象形字间隔（中日韩符号和标点），不包含在\s内
-            buffer.append(p[0].replace("[\u3000\\s]+".toRegex(), ""))
-        }
-
-        //如果原文存在分段错误，需要把段落重新黏合
-        for (i in 1 until p.size) {
-            if (match(MARK_SENTENCES_END, buffer[buffer.length - 1])) buffer.append("\n")
-            // 段落开头以外的地方不应该有空格
-            // 去除段落内空格。unicode 3000 象形字间隔（中日韩符号和标点），不包含在\s内
-            buffer.append(p[i].replace("[\u3000\\s]".toRegex(), ""))
-        }
+        val capacity = (content1.length * 1.15).toInt()
+        val text = normalizeQuotes(content1)
+        var buffer = joinLines(text, chapterName, capacity)
         //     预分段预处理
         //         ”“处理为”\n“。
         //         ”。“处理为”。\n“。不考虑“？”  “！”的情况。
         // ”。xxx处理为 ”。\n xxx
-        p = buffer.toString()
-            .replace("[\"”“]+[\\s]*[\"”“]+".toRegex(), "”\n“")
-            .replace("[\"”“]+(？。！?!~)[\"”“]+".toRegex(), "”$1\n“")
-            .replace("[\"”“]+(？。！?!~)([^\"”“])".toRegex(), "”$1\n$2")
-            .replace(
-                "([问说喊唱叫骂道着答])[\\.。]".toRegex(),
-                "$1。\n"
-            )
-            .split("\n".toRegex()).toTypedArray()
-        buffer = StringBuilder((content1.length * 1.15).toInt())
-        for (s in p) {
+        val preSegmented = preSegment(buffer.toString())
+        buffer = StringBuilder(capacity)
+        var lineStart = 0
+        while (true) {
+            val lineEnd = preSegmented.indexOf('\n', lineStart)
             buffer.append("\n")
-            buffer.append(findNewLines(s, dict))
+            if (lineEnd < 0) {
+                buffer.append(findNewLines(preSegmented.substring(lineStart), dict, random))
+                break
+            }
+            buffer.append(findNewLines(preSegmented.substring(lineStart, lineEnd), dict, random))
+            lineStart = lineEnd + 1
         }
         buffer = reduceLength(buffer)
-        content1 = (buffer.toString() //         处理章节头部空格和换行
-            .replaceFirst("^\\s+".toRegex(), "")
-            .replace("\\s*[\"”“]+[\\s]*[\"”“][\\s\"”“]*".toRegex(), "”\n“")
-            .replace("[:：][”“\"\\s]+".toRegex(), "：“")
-            .replace("\n[\"“”]([^\n\"“”]+)([,:，：][\"”“])([^\n\"“”]+)".toRegex(), "\n$1：“$3")
-            .replace("\n(\\s*)".toRegex(), "\n"))
-        return content1
+        //         处理章节头部空格和换行
+        return finishLines(finishQuotes(buffer))
+    }
+
+    /**
+     * 依次等价于
+     * replace("[:：]['\"‘”“]+", "：“")
+     * replace("[\"”“]+[\\s]*[\"”“][\\s\"”“]*", "”\n“")
+     */
+    private fun normalizeQuotes(text: String): StringBuilder {
+        val length = text.length
+        val out = StringBuilder(length + 16)
+        var i = 0
+        while (i < length) {
+            val c = text[i]
+            if (match(MARK_COLON, c) && i + 1 < length && match(MARK_QUOTATION_ALL, text[i + 1])) {
+                out.append('：')
+                i++
+                while (i < length && match(MARK_QUOTATION_ALL, text[i])) i++
+                //替换出的“与后面的引号和空白一起参与下一条规则
+                i = appendQuoteRun(out, text, i, 1, "“")
+            } else if (match(MARK_QUOTATION, c)) {
+                i = appendQuoteRun(out, text, i, 0, "")
+            } else {
+                out.append(c)
+                i++
+            }
+        }
+        return out
+    }
+
+    /**
+     * 从start开始的连续引号和空白中引号不少于2个时替换为”\n“,否则原样保留
+     * @return 连续引号和空白之后的位置
+     */
+    private fun appendQuoteRun(
+        out: StringBuilder,
+        text: CharSequence,
+        start: Int,
+        quoteCount: Int,
+        prefix: String
+    ): Int {
+        var count = quoteCount
+        var end = start
+        while (end < text.length) {
+            val c = text[end]
+            if (match(MARK_QUOTATION, c)) {
+                count++
+            } else if (!isRegexSpace(c)) {
+                break
+            }
+            end++
+        }
+        if (count >= 2) {
+            out.append("”\n“")
+        } else {
+            out.append(prefix).append(text, start, end)
+        }
+        return end
+    }
+
+    /**
+     * 按split("\n(\\s*)")拆分段落并重新黏合，去除段落内空格
+     * 章节的文本格式为章节标题-空行-首段，所以处理段落时需要略过第一行文本。
+     */
+    private fun joinLines(text: StringBuilder, chapterName: String, capacity: Int): StringBuilder {
+        val length = text.length
+        val buffer = StringBuilder(capacity)
+        buffer.append(" ")
+        var lineEnd = text.indexOf("\n")
+        if (lineEnd < 0) lineEnd = length
+        if (chapterName.trim { it <= ' ' } != text.substring(0, lineEnd).trim { it <= ' ' }) {
+            appendWithoutSpace(buffer, text, 0, lineEnd)
+        }
+        var i = lineEnd
+        //如果原文存在分段错误，需要把段落重新黏合
+        while (i < length) {
+            i++
+            while (i < length && isRegexSpace(text[i])) i++
+            lineEnd = text.indexOf("\n", i)
+            if (lineEnd < 0) lineEnd = length
+            if (match(MARK_SENTENCES_END, buffer[buffer.length - 1])) buffer.append("\n")
+            // 段落开头以外的地方不应该有空格
+            appendWithoutSpace(buffer, text, i, lineEnd)
+            i = lineEnd
+        }
+        return buffer
+    }
+
+    /**
+     * 去除段落内空格。unicode 3000 象形字间隔（中日韩符号和标点），不一定包含在\s内
+     */
+    private fun appendWithoutSpace(buffer: StringBuilder, text: CharSequence, start: Int, end: Int) {
+        for (i in start until end) {
+            val c = text[i]
+            if (c != '\u3000' && !isRegexSpace(c)) buffer.append(c)
+        }
+    }
+
+    /**
+     * 依次等价于
+     * replace("[\"”“]+[\\s]*[\"”“]+", "”\n“")
+     * replace("[\"”“]+(？。！?!~)[\"”“]+", "”$1\n“")
+     * replace("[\"”“]+(？。！?!~)([^\"”“])", "”$1\n$2")
+     * replace("([问说喊唱叫骂道着答])[\\.。]", "$1。\n")
+     */
+    private fun preSegment(text: String): String {
+        if (text.contains("？。")) {
+            //极少出现，直接使用正则
+            return text
+                .replace(QUOTE_PAIR_REGEX, "”\n“")
+                .replace(QUOTE_END_QUOTE_REGEX, "”$1\n“")
+                .replace(QUOTE_END_TEXT_REGEX, "”$1\n$2")
+                .replace(SAY_END_REGEX, "$1。\n")
+        }
+        val length = text.length
+        val out = StringBuilder(length + 16)
+        var i = 0
+        while (i < length) {
+            val c = text[i]
+            if (match(MARK_QUOTATION, c)) {
+                var quoteEnd = i + 1
+                while (quoteEnd < length && match(MARK_QUOTATION, text[quoteEnd])) quoteEnd++
+                var next = quoteEnd
+                while (next < length && isRegexSpace(text[next])) next++
+                if (next > quoteEnd && next < length && match(MARK_QUOTATION, text[next])) {
+                    while (next < length && match(MARK_QUOTATION, text[next])) next++
+                    out.append("”\n“")
+                    i = next
+                } else if (quoteEnd - i >= 2) {
+                    out.append("”\n“")
+                    i = quoteEnd
+                } else {
+                    out.append(c)
+                    i++
+                }
+            } else if (match(MARK_SENTENCES_SAY, c) && i + 1 < length && match(".。", text[i + 1])) {
+                out.append(c).append("。\n")
+                i += 2
+            } else {
+                out.append(c)
+                i++
+            }
+        }
+        return out.toString()
+    }
+
+    /**
+     * 依次等价于
+     * replaceFirst("^\\s+", "")
+     * replace("\\s*[\"”“]+[\\s]*[\"”“][\\s\"”“]*", "”\n“")
+     * replace("[:：][”“\"\\s]+", "：“")
+     */
+    private fun finishQuotes(text: StringBuilder): StringBuilder {
+        val length = text.length
+        val out = StringBuilder(length + 16)
+        var i = 0
+        while (i < length && isRegexSpace(text[i])) i++
+        while (i < length) {
+            val c = text[i]
+            if (match(MARK_COLON, c)) {
+                var end = i + 1
+                while (end < length && (match(MARK_QUOTATION, text[end]) || isRegexSpace(text[end]))) {
+                    end++
+                }
+                out.append(c)
+                if (end > i + 1) {
+                    out.setCharAt(out.length - 1, '：')
+                    out.append('“')
+                }
+                i = end
+            } else if (match(MARK_QUOTATION, c) || isRegexSpace(c)) {
+                i = appendQuoteRun(out, text, i, 0, "")
+            } else {
+                out.append(c)
+                i++
+            }
+        }
+        return out
+    }
+
+    /**
+     * 依次等价于
+     * replace("\n[\"“”]([^\n\"“”]+)([,:，：][\"”“])([^\n\"“”]+)", "\n$1：“$3")
+     * replace("\n(\\s*)", "\n")
+     */
+    private fun finishLines(text: StringBuilder): String {
+        val length = text.length
+        val out = StringBuilder(length)
+        var afterNewLine = false
+        fun emit(c: Char) {
+            if (c == '\n') {
+                if (!afterNewLine) out.append(c)
+                afterNewLine = true
+            } else if (!afterNewLine || !isRegexSpace(c)) {
+                out.append(c)
+                afterNewLine = false
+            }
+        }
+
+        var i = 0
+        while (i < length) {
+            val c = text[i]
+            if (c == '\n' && i + 1 < length && match(MARK_QUOTATION, text[i + 1])) {
+                //寻找下一个引号，其前一个字符须为提示语标点，之后须有正文
+                var quote = i + 2
+                while (quote < length && text[quote] != '\n' && !match(MARK_QUOTATION, text[quote])) {
+                    quote++
+                }
+                var end = quote + 1
+                while (end < length && text[end] != '\n' && !match(MARK_QUOTATION, text[end])) {
+                    end++
+                }
+                if (quote < length && quote - i >= 4 && match(MARK_QUOTATION, text[quote])
+                    && match(",:，：", text[quote - 1]) && end > quote + 1
+                ) {
+                    emit('\n')
+                    for (j in i + 2 until quote - 1) emit(text[j])
+                    emit('：')
+                    emit('“')
+                    for (j in quote + 1 until end) emit(text[j])
+                    i = end
+                    continue
+                }
+            }
+            emit(c)
+            i++
+        }
+        return out.toString()
     }
 
     /**
@@ -77,11 +283,11 @@ object ContentHelp {
      * @return
      */
     private fun reduceLength(str: StringBuilder): StringBuilder {
-        val p = str.toString().split("\n".toRegex()).toTypedArray()
+        val p = str.split('\n').toTypedArray()
         val l = p.size
         val b = BooleanArray(l)
         for (i in 0 until l) {
-            b[i] = p[i].matches(PARAGRAPH_DIAGLOG)
+            b[i] = isDialog(p[i])
         }
         var dialogue = 0
         for (i in 0 until l) {
@@ -106,6 +312,21 @@ object ContentHelp {
         return string
     }
 
+    /**
+     * 是否为 “xxx” 形式的段落，等价于matches("^[\"”“][^\"”“]+[\"”“]$")
+     */
+    private fun isDialog(str: String): Boolean {
+        val length = str.length
+        if (length < 3) return false
+        if (!match(MARK_QUOTATION, str[0]) || !match(MARK_QUOTATION, str[length - 1])) {
+            return false
+        }
+        for (i in 1 until length - 1) {
+            if (match(MARK_QUOTATION, str[i])) return false
+        }
+        return true
+    }
+
     // 强制切分进入对话模式后，未构成 “xxx” 形式的段落
     private fun splitQuote(str: String): String {
         val length = str.length
@@ -139,11 +360,19 @@ object ContentHelp {
         offset: Int,
         min: Int,
         gain: Int,
-        tigger: Int
+        tigger: Int,
+        random: Random
     ): ArrayList<Int> {
         val result = ArrayList<Int>()
-        val arrayEnd = seekIndexs(str, MARK_SENTENCES_END_P, 0, str.length - 2, true)
-        val arrayMid = seekIndexs(str, MARK_SENTENCES_MID, 0, str.length - 2, true)
+        //一次扫描同时记录句末和句中标点的位置
+        val arrayEnd = ArrayList<Int>()
+        val arrayMid = ArrayList<Int>()
+        val t = if (str.length - 2 > 0) str.length - 2 else str.length
+        for (index in 0 until t) {
+            val c = str[index]
+            if (match(MARK_SENTENCES_END_P, c)) arrayEnd.add(index)
+            if (match(MARK_SENTENCES_MID, c)) arrayMid.add(index)
+        }
         if (arrayEnd.size < tigger && arrayMid.size < tigger * 3) return result
         var j = 0
         var i = min
@@ -153,7 +382,7 @@ object ContentHelp {
                 if (arrayMid[j] < arrayEnd[i]) k++
                 j++
             }
-            if (Math.random() * gain < 0.8 + k / 2.5) {
+            if (random.nextDouble() * gain < 0.8 + k / 2.5) {
                 result.add(arrayEnd[i] + offset)
                 i = max(i + min, i)
             }
@@ -163,7 +392,7 @@ object ContentHelp {
     }
 
     // 对内容重新划分段落.输入参数str已经使用换行符预分割
-    private fun findNewLines(str: String, dict: List<String>): String {
+    private fun findNewLines(str: String, dict: Set<String>, random: Random): String {
         val string = StringBuilder(str)
         // 标记string中每个引号的位置.特别的，用引号进行列举时视为只有一对引号。 如：“锅”、“碗”视为“锅、碗”，从而避免误断句。
         val arrayQuote: MutableList<Int> = ArrayList()
@@ -371,14 +600,14 @@ object ContentHelp {
                     nextLine = insN[j]
                     if (progress < nextLine) {
                         subs = string.substring(progress, nextLine)
-                        insN.addAll(forceSplit(subs, progress, min, gain, trigger))
+                        insN.addAll(forceSplit(subs, progress, min, gain, trigger, random))
                         progress = nextLine + 1
                     }
                     j++
                 }
                 if (progress < qutoe) {
                     subs = string.substring(progress, qutoe + 1)
-                    insN.addAll(forceSplit(subs, progress, min, gain, trigger))
+                    insN.addAll(forceSplit(subs, progress, min, gain, trigger, random))
                     progress = qutoe + 1
                 }
             }
@@ -386,14 +615,14 @@ object ContentHelp {
                 nextLine = insN[j]
                 if (progress < nextLine) {
                     subs = string.substring(progress, nextLine)
-                    insN.addAll(forceSplit(subs, progress, min, gain, trigger))
+                    insN.addAll(forceSplit(subs, progress, min, gain, trigger, random))
                     progress = nextLine + 1
                 }
                 j++
             }
             if (progress < string.length) {
                 subs = string.substring(progress, string.length)
-                insN.addAll(forceSplit(subs, progress, min, gain, trigger))
+                insN.addAll(forceSplit(subs, progress, min, gain, trigger, random))
             }
         }
 
@@ -472,62 +701,17 @@ object ContentHelp {
      * @param str
      * @return 词条列表
      */
-    private fun makeDict(str: String): List<String> {
-
-        // 引号中间不包含任何标点
-        val patten = Pattern.compile(
-            """
-          (?<=["'”“])([^
-          \p{P}]{1,$WORD_MAX_LENGTH})(?=["'”“])
-          """.trimIndent()
-        )
-        //Pattern patten = Pattern.compile("(?<=[\"'”“])([^\n\"'”“]{1,16})(?=[\"'”“])");
-        val matcher = patten.matcher(str)
-        val cache: MutableList<String> = ArrayList()
-        val dict: MutableList<String> = ArrayList()
+    private fun makeDict(str: String): Set<String> {
+        val matcher = DICT_WORD_PATTERN.matcher(str)
+        val cache = HashSet<String>()
+        val dict = HashSet<String>()
         while (matcher.find()) {
             val word = matcher.group()
-            if (cache.contains(word)) {
-                if (!dict.contains(word)) dict.add(word)
-            } else cache.add(word)
+            if (!cache.add(word)) dict.add(word)
         }
         return dict
     }
 
-    /**
-     * 计算匹配到字典的每个字符的位置
-     *
-     * @param str     待匹配的字符串
-     * @param key     字典
-     * @param from    从字符串的第几个字符开始匹配
-     * @param to      匹配到第几个字符结束
-     * @param inOrder 是否按照从前向后的顺序匹配
-     * @return 返回距离构成的ArrayList<Int>
-     */
-    private fun seekIndexs(
-        str: String,
-        key: String,
-        from: Int,
-        to: Int,
-        inOrder: Boolean
-    ): ArrayList<Int> {
-        val list = ArrayList<Int>()
-        if (str.length - from < 1) return list
-        var i = 0
-        if (from > i) i = from
-        var t = str.length
-        if (to > 0) t = min(t, to)
-        var c: Char
-        while (i < t) {
-            c = if (inOrder) str[i] else str[str.length - i - 1]
-            if (key.indexOf(c) != -1) {
-                list.add(i)
-            }
-            i++
-        }
-        return list
-    }
-
     /**
      * 计算字符串最后出现与字典中字符匹配的位置
      *
@@ -607,13 +791,45 @@ object ContentHelp {
     //  XXX说：“”的冒号
     private const val MARK_QUOTATION_BEFORE = "，：,:"
 
+    private const val MARK_COLON = ":："
+
     //  引号
     private const val MARK_QUOTATION = "\"“”"
-    private val PARAGRAPH_DIAGLOG = "^[\"”“][^\"”“]+[\"”“]$".toRegex()
+    private const val MARK_QUOTATION_ALL = "'\"‘”“"
 
     //  限制字典的长度
     private const val WORD_MAX_LENGTH = 16
 
+    // 引号中间不包含任何标点
+    private val DICT_WORD_PATTERN = Pattern.compile(
+        """
+          (?<=["'”“])([^
+          \p{P}]{1,$WORD_MAX_LENGTH})(?=["'”“])
+          """.trimIndent()
+    )
+
+    //  预分段的正则，只在出现“？。”时使用
+    private val QUOTE_PAIR_REGEX = "[\"”“]+[\\s]*[\"”“]+".toRegex()
+    private val QUOTE_END_QUOTE_REGEX = "[\"”“]+(？。！?!~)[\"”“]+".toRegex()
+    private val QUOTE_END_TEXT_REGEX = "[\"”“]+(？。！?!~)([^\"”“])".toRegex()
+    private val SAY_END_REGEX = "([问说喊唱叫骂道着答])[\\.。]".toRegex()
+
+    /**
+     * 与平台正则的\s一致，JVM只含ASCII空白，Android(ICU)还包含Unicode空白
+     */
+    private val REGEX_SPACE_TABLE: BooleanArray by lazy {
+        val table = BooleanArray(65536)
+        val matcher = Pattern.compile("\\s").matcher(String(CharArray(65536) { it.toChar() }))
+        while (matcher.find()) {
+            table[matcher.start()] = true
+        }
+        table
+    }
+
+    fun isRegexSpace(chr: Char): Boolean {
+        return REGEX_SPACE_TABLE[chr.code]
+    }
+
     private fun match(rule: String, chr: Char): Boolean {
         return rule.indexOf(chr) != -1
     }
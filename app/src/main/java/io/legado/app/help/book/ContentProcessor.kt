@@ -1,6 +1,6 @@
 package io.legado.app.help.book
 
-import com.github.liuyueyi.quick.transfer.ChineseUtils
+import androidx.collection.LruCache
 import io.legado.app.constant.AppLog
 import io.legado.app.constant.AppPattern.spaceRegex
 import io.legado.app.data.appDb
@@ -8,17 +8,21 @@ import io.legado.app.data.entities.Book
 import io.legado.app.data.entities.BookChapter
 import io.legado.app.data.entities.ReplaceRule
 import io.legado.app.exception.RegexTimeoutException
+import io.legado.app.help.ChineseConverter
 import io.legado.app.help.config.AppConfig
 import io.legado.app.help.config.ReadBookConfig
-import io.legado.app.utils.escapeRegex
+import io.legado.app.utils.MD5Utils
 import io.legado.app.utils.replace
 import io.legado.app.utils.stackTraceStr
 import io.legado.app.utils.toastOnUi
 import kotlinx.coroutines.CancellationException
 import splitties.init.appCtx
 import java.lang.ref.WeakReference
+import java.util.BitSet
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.CopyOnWriteArrayList
-import java.util.regex.Pattern
+import java.util.concurrent.atomic.AtomicInteger
 
 class ContentProcessor private constructor(
     private val bookName: String,
@@ -27,6 +31,17 @@ class ContentProcessor private constructor(
 
     companion object {
         private val processors = hashMapOf<String, WeakReference<ContentProcessor>>()
+        private val rulesVersionGenerator = AtomicInteger()
+
+        /**
+         * 处理后的正文缓存,按字符数限制大小,约占最大内存的1/16
+         */
+        private val contentCache =
+            object : LruCache<String, BookContent>((Runtime.getRuntime().maxMemory() / 32).toInt()) {
+                override fun sizeOf(key: String, value: BookContent): Int {
+                    return value.textList.sumOf { it.length } + 1
+                }
+            }
 
         fun get(book: Book) = get(book.name, book.origin)
 
@@ -41,6 +56,7 @@ class ContentProcessor private constructor(
         }
 
         fun upReplaceRules() {
+            contentCache.evictAll()
             processors.forEach {
                 it.value.get()?.upReplaceRules()
             }
@@ -50,7 +66,32 @@ class ContentProcessor private constructor(
 
     private val titleReplaceRules = CopyOnWriteArrayList<ReplaceRule>()
     private val contentReplaceRules = CopyOnWriteArrayList<ReplaceRule>()
-    val removeSameTitleCache = hashSetOf<String>()
+
+    @Volatile
+    private var contentRuleSet = ReplaceRuleSet(emptyList())
+
+    /**
+     * 显示标题缓存,key为章节序号和参数,标题,规则版本或简繁设置变化后失效
+     */
+    private val displayTitleCache = LruCache<Int, DisplayTitle>(20000)
+
+    /**
+     * 不去除重复标题的章节,阅读和下载线程同时读写
+     */
+    val removeSameTitleCache: MutableSet<String> =
+        Collections.newSetFromMap(ConcurrentHashMap())
+
+    /**
+     * 替换规则版本,规则更新后旧的正文缓存不再命中
+     */
+    @Volatile
+    private var rulesVersion = 0
+
+    /**
+     * 正文替换规则指纹,跨进程不变,用于磁盘缓存
+     */
+    @Volatile
+    private var rulesFingerprint = ""
 
     init {
         upReplaceRules()
@@ -58,29 +99,100 @@ class ContentProcessor private constructor(
     }
 
     fun upReplaceRules() {
+        rulesVersion = rulesVersionGenerator.incrementAndGet()
+        displayTitleCache.evictAll()
         titleReplaceRules.run {
             clear()
-            addAll(appDb.replaceRuleDao.findEnabledByTitleScope(bookName, bookOrigin))
+            addAll(ReplaceRuleIndex.getTitleRules(bookName, bookOrigin))
         }
         contentReplaceRules.run {
             clear()
-            addAll(appDb.replaceRuleDao.findEnabledByContentScope(bookName, bookOrigin))
+            addAll(ReplaceRuleIndex.getContentRules(bookName, bookOrigin))
         }
+        contentRuleSet = ReplaceRuleSet(contentReplaceRules)
+        rulesFingerprint = MD5Utils.md5Encode16(
+            contentReplaceRules.joinToString("\u0000") {
+                "${it.id}\u0001${it.pattern}\u0001${it.replacement}\u0001${it.isRegex}"
+            }
+        )
     }
 
     private fun upRemoveSameTitle() {
         val book = appDb.bookDao.getBookByOrigin(bookName, bookOrigin) ?: return
         removeSameTitleCache.clear()
-        val files = BookHelp.getChapterFiles(book).filter {
-            it.endsWith("nr")
-        }
-        removeSameTitleCache.addAll(files)
+        removeSameTitleCache.addAll(BookHelp.loadKeepSameTitle(book))
     }
 
     fun getTitleReplaceRules(): List<ReplaceRule> {
         return titleReplaceRules
     }
 
+    /**
+     * 获取显示标题,优先使用缓存
+     */
+    fun getDisplayTitle(
+        chapter: BookChapter,
+        useReplace: Boolean = true,
+        chineseConvert: Boolean = true
+    ): String {
+        peekDisplayTitle(chapter, useReplace, chineseConvert)?.let {
+            return it
+        }
+        val version = rulesVersion
+        val converterType = if (chineseConvert) AppConfig.chineseConverterType else 0
+        val displayTitle = chapter.getDisplayTitle(titleReplaceRules, useReplace, chineseConvert)
+        displayTitleCache.put(
+            displayTitleKey(chapter, useReplace, chineseConvert),
+            DisplayTitle(chapter, version, converterType, displayTitle)
+        )
+        return displayTitle
+    }
+
+    /**
+     * 只从缓存获取显示标题,没有时返回null
+     */
+    fun peekDisplayTitle(
+        chapter: BookChapter,
+        useReplace: Boolean = true,
+        chineseConvert: Boolean = true
+    ): String? {
+        val cache = displayTitleCache[displayTitleKey(chapter, useReplace, chineseConvert)]
+            ?: return null
+        val converterType = if (chineseConvert) AppConfig.chineseConverterType else 0
+        if (!cache.isValid(chapter, rulesVersion, converterType)) return null
+        return cache.value
+    }
+
+    private fun displayTitleKey(
+        chapter: BookChapter,
+        useReplace: Boolean,
+        chineseConvert: Boolean
+    ): Int {
+        var key = chapter.index shl 2
+        if (useReplace) key = key or 1
+        if (chineseConvert) key = key or 2
+        return key
+    }
+
+    private class DisplayTitle(
+        chapter: BookChapter,
+        val rulesVersion: Int,
+        val converterType: Int,
+        val value: String
+    ) {
+        private val title = chapter.title
+        private val isVip = chapter.isVip
+        private val isPay = chapter.isPay
+
+        fun isValid(chapter: BookChapter, rulesVersion: Int, converterType: Int): Boolean {
+            return this.rulesVersion == rulesVersion
+                    && this.converterType == converterType
+                    && title == chapter.title
+                    && isVip == chapter.isVip
+                    && isPay == chapter.isPay
+        }
+    }
+
     @Suppress("MemberVisibilityCanBePrivate")
     fun getContentReplaceRules(): List<ReplaceRule> {
         return contentReplaceRules
@@ -95,64 +207,183 @@ class ContentProcessor private constructor(
         chineseConvert: Boolean = true,
         reSegment: Boolean = true
     ): BookContent {
+        val fileName = chapter.getFileName("nr")
+        val removeSameTitle = !removeSameTitleCache.contains(fileName)
+        val cacheKey = getCacheKey(
+            book, chapter, content, removeSameTitle,
+            includeTitle, useReplace, chineseConvert, reSegment
+        )
+        contentCache[cacheKey]?.let {
+            return it
+        }
+        val processed = getProcessedFromDisk(
+            book, chapter, content, removeSameTitle, useReplace, chineseConvert, reSegment
+        ) ?: processContent(
+            book, chapter, content, removeSameTitle, useReplace, chineseConvert, reSegment
+        )
+        val contents = arrayListOf<String>()
+        val paragraphIndent = ReadBookConfig.paragraphIndent
+        if (includeTitle) {
+            //重新添加标题
+            val displayTitle = getDisplayTitle(
+                chapter,
+                useReplace = useReplace && book.getUseReplaceRule()
+            )
+            addParagraphs(contents, displayTitle, 0, paragraphIndent, true)
+        }
+        addParagraphs(contents, processed.text, processed.start, paragraphIndent, includeTitle)
+        val bookContent = BookContent(
+            processed.sameTitleRemoved,
+            contents,
+            processed.effectiveReplaceRules
+        )
+        if (processed.cacheable) {
+            contentCache.put(cacheKey, bookContent)
+        }
+        return bookContent
+    }
+
+    /**
+     * 预处理章节正文并写入磁盘缓存,缓存有效时跳过
+     * @return 是否重新处理
+     */
+    fun preProcess(
+        book: Book,
+        chapter: BookChapter,
+        useReplace: Boolean = true,
+        chineseConvert: Boolean = true,
+        reSegment: Boolean = true
+    ): Boolean {
+        val content = BookHelp.getContent(book, chapter) ?: return false
+        val removeSameTitle = !removeSameTitleCache.contains(chapter.getFileName("nr"))
+        val variant = getVariant(book, removeSameTitle, useReplace, chineseConvert, reSegment)
+        val diskKey = getDiskKey(variant, chapter, content)
+        val dir = BookHelp.getBookCacheDir(book)
+        val fileName = chapter.getFileName("p$variant")
+        if (ProcessedContentCache.contains(dir, fileName, diskKey)) {
+            return false
+        }
+        val processed = processContent(
+            book, chapter, content, removeSameTitle, useReplace, chineseConvert, reSegment
+        )
+        if (processed.cacheable) {
+            val entry = ProcessedContentCache.Entry(
+                processed.sameTitleRemoved,
+                processed.effectiveReplaceRules?.map { it.id },
+                processed.text.substring(processed.start)
+            )
+            ProcessedContentCache.put(dir, fileName, diskKey, entry)
+        }
+        return true
+    }
+
+    /**
+     * 处理后的正文,[text]从[start]开始有效
+     */
+    private class Processed(
+        val text: String,
+        val start: Int,
+        val sameTitleRemoved: Boolean,
+        val effectiveReplaceRules: List<ReplaceRule>?,
+        val cacheable: Boolean
+    )
+
+    private fun getProcessedFromDisk(
+        book: Book,
+        chapter: BookChapter,
+        content: String,
+        removeSameTitle: Boolean,
+        useReplace: Boolean,
+        chineseConvert: Boolean,
+        reSegment: Boolean
+    ): Processed? {
+        if (content == "null") return null
+        val variant = getVariant(book, removeSameTitle, useReplace, chineseConvert, reSegment)
+        val entry = ProcessedContentCache.get(
+            BookHelp.getBookCacheDir(book),
+            chapter.getFileName("p$variant"),
+            getDiskKey(variant, chapter, content)
+        ) ?: return null
+        val effectiveReplaceRules = entry.ruleIds?.let { ids ->
+            contentReplaceRules.filter { ids.contains(it.id) }
+        }
+        return Processed(entry.text, 0, entry.sameTitleRemoved, effectiveReplaceRules, true)
+    }
+
+    private fun processContent(
+        book: Book,
+        chapter: BookChapter,
+        content: String,
+        removeSameTitle: Boolean,
+        useReplace: Boolean,
+        chineseConvert: Boolean,
+        reSegment: Boolean
+    ): Processed {
         var mContent = content
+        //去除重复标题后正文的起始位置,需要时才截取
+        var contentStart = 0
         var sameTitleRemoved = false
         var effectiveReplaceRules: ArrayList<ReplaceRule>? = null
+        //出错的结果不缓存
+        var cacheable = true
         if (content != "null") {
             //去除重复标题
-            val fileName = chapter.getFileName("nr")
-            if (!removeSameTitleCache.contains(fileName)) try {
-                val name = Pattern.quote(book.name)
-                var title = chapter.title.escapeRegex().replace(spaceRegex, "\\\\s*")
-                var matcher = Pattern.compile("^(\\s|\\p{P}|${name})*${title}(\\s)*")
-                    .matcher(mContent)
-                if (matcher.find()) {
-                    mContent = mContent.substring(matcher.end())
-                    sameTitleRemoved = true
-                } else if (useReplace && book.getUseReplaceRule()) {
-                    title = Pattern.quote(
-                        chapter.getDisplayTitle(
-                            contentReplaceRules,
-                            chineseConvert = false
-                        )
+            if (removeSameTitle) try {
+                val name = book.name
+                var end = matchSameTitle(mContent, name, chapter.title.split(spaceRegex))
+                if (end < 0 && useReplace && book.getUseReplaceRule()) {
+                    val title = chapter.getDisplayTitle(
+                        contentReplaceRules,
+                        chineseConvert = false
                     )
-                    matcher = Pattern.compile("^(\\s|\\p{P}|${name})*${title}(\\s)*")
-                        .matcher(mContent)
-                    if (matcher.find()) {
-                        mContent = mContent.substring(matcher.end())
-                        sameTitleRemoved = true
-                    }
+                    end = matchSameTitle(mContent, name, listOf(title))
+                }
+                if (end >= 0) {
+                    contentStart = end
+                    sameTitleRemoved = true
                 }
             } catch (e: Exception) {
                 AppLog.put("去除重复标题出错\n${e.localizedMessage}", e)
             }
             if (reSegment && book.getReSegment()) {
                 //重新分段
-                mContent = ContentHelp.reSegment(mContent, chapter.title)
+                mContent = ContentHelp.reSegment(mContent.substring(contentStart), chapter.title)
+                contentStart = 0
             }
             if (chineseConvert) {
                 //简繁转换
                 try {
-                    when (AppConfig.chineseConverterType) {
-                        1 -> mContent = ChineseUtils.t2s(mContent)
-                        2 -> mContent = ChineseUtils.s2t(mContent)
+                    val converterType = AppConfig.chineseConverterType
+                    if (converterType == 1 || converterType == 2) {
+                        mContent = ChineseConverter.convert(mContent.substring(contentStart), converterType)
+                        contentStart = 0
                     }
                 } catch (e: Exception) {
+                    cacheable = false
                     appCtx.toastOnUi("简繁转换出错")
                 }
             }
             if (useReplace && book.getUseReplaceRule()) {
                 //替换
                 effectiveReplaceRules = arrayListOf()
-                mContent = mContent.lines().joinToString("\n") { it.trim() }
-                getContentReplaceRules().forEach { item ->
-                    if (item.pattern.isEmpty()) {
+                mContent = trimLines(mContent, contentStart)
+                contentStart = 0
+                val ruleSet = contentRuleSet
+                val ruleFilter = ruleSet.Filter()
+                ruleSet.items.forEach { ruleItem ->
+                    val item = ruleItem.rule
+                    //文本中不含规则关键词时跳过
+                    if (!ruleFilter.mayMatch(ruleItem, mContent)) {
+                        ruleItem.counter.skip()
                         return@forEach
                     }
+                    val startTime = System.nanoTime()
+                    var changed = false
+                    var lengthDelta = 0
                     try {
                         val tmp = if (item.isRegex) {
                             mContent.replace(
-                                item.pattern.toRegex(),
+                                ruleItem.regex ?: item.pattern.toRegex(),
                                 item.replacement,
                                 item.getValidTimeoutMillisecond()
                             )
@@ -161,41 +392,227 @@ class ContentProcessor private constructor(
                         }
                         if (mContent != tmp) {
                             effectiveReplaceRules.add(item)
+                            changed = true
+                            lengthDelta = tmp.length - mContent.length
                             mContent = tmp
+                            ruleFilter.textChanged()
                         }
                     } catch (e: RegexTimeoutException) {
+                        cacheable = false
                         item.isEnabled = false
                         appDb.replaceRuleDao.update(item)
+                        ReplaceRuleIndex.update(item)
                         mContent = item.name + e.stackTraceStr
+                        ruleFilter.textChanged()
                     } catch (_: CancellationException) {
+                        cacheable = false
                     } catch (e: Exception) {
+                        cacheable = false
                         AppLog.put("替换净化: 规则 ${item.name}替换出错.\n${mContent}", e)
                         appCtx.toastOnUi("替换净化: 规则 ${item.name}替换出错")
                     }
+                    ruleItem.counter.record(System.nanoTime() - startTime, changed, lengthDelta)
                 }
             }
         }
-        if (includeTitle) {
-            //重新添加标题
-            mContent = chapter.getDisplayTitle(
-                getTitleReplaceRules(),
-                useReplace = useReplace && book.getUseReplaceRule()
-            ) + "\n" + mContent
+        return Processed(
+            mContent, contentStart, sameTitleRemoved, effectiveReplaceRules, cacheable
+        )
+    }
+
+    /**
+     * 匹配正文开头的重复标题,等同于正则^(\s|\p{P}|书名)*标题(\s)*,返回结束位置,不匹配返回-1
+     * 标题按空白拆分,各部分之间允许任意空白;按正则回溯的顺序尝试,结果与正则一致
+     */
+    private fun matchSameTitle(text: String, name: String, titleParts: List<String>): Int {
+        //无法匹配标题的位置
+        val failed = BitSet()
+        //位置左移2位,低2位为步骤: 0单个空白或标点 1书名 2标题
+        val stack = ArrayDeque<Int>()
+        stack.add(0)
+        while (stack.isNotEmpty()) {
+            val top = stack.removeLast()
+            val pos = top ushr 2
+            when (top and 3) {
+                0 -> {
+                    stack.add(pos shl 2 or 1)
+                    if (pos < text.length && isSpaceOrPunctuation(text[pos]) && !failed[pos + 1]) {
+                        stack.add((pos + 1) shl 2)
+                    }
+                }
+
+                1 -> {
+                    stack.add(pos shl 2 or 2)
+                    val next = pos + name.length
+                    if (name.isNotEmpty() && text.startsWith(name, pos) && !failed[next]) {
+                        stack.add(next shl 2)
+                    }
+                }
+
+                else -> {
+                    val end = matchTitleParts(text, pos, titleParts)
+                    if (end >= 0) return skipRegexSpace(text, end)
+                    failed.set(pos)
+                }
+            }
         }
-        val contents = arrayListOf<String>()
-        mContent.split("\n").forEach { str ->
-            val paragraph = str.trim {
-                it.code <= 0x20 || it == '　'
+        return -1
+    }
+
+    private fun matchTitleParts(text: String, start: Int, parts: List<String>): Int {
+        var pos = start
+        parts.forEachIndexed { index, part ->
+            if (index > 0) pos = skipRegexSpace(text, pos)
+            if (!text.startsWith(part, pos)) return -1
+            pos += part.length
+        }
+        return pos
+    }
+
+    private fun skipRegexSpace(text: String, start: Int): Int {
+        var pos = start
+        while (pos < text.length && ContentHelp.isRegexSpace(text[pos])) pos++
+        return pos
+    }
+
+    private fun isSpaceOrPunctuation(c: Char): Boolean {
+        if (ContentHelp.isRegexSpace(c)) return true
+        return when (Character.getType(c).toByte()) {
+            Character.CONNECTOR_PUNCTUATION,
+            Character.DASH_PUNCTUATION,
+            Character.START_PUNCTUATION,
+            Character.END_PUNCTUATION,
+            Character.INITIAL_QUOTE_PUNCTUATION,
+            Character.FINAL_QUOTE_PUNCTUATION,
+            Character.OTHER_PUNCTUATION -> true
+
+            else -> false
+        }
+    }
+
+    /**
+     * 去除每行首尾空白,结果与lines().joinToString("\n") { it.trim() }相同,只复制一次
+     */
+    private fun trimLines(text: String, start: Int): String {
+        val length = text.length
+        val sb = StringBuilder(length - start)
+        var lineStart = start
+        while (true) {
+            var lineEnd = lineStart
+            while (lineEnd < length && text[lineEnd] != '\n' && text[lineEnd] != '\r') {
+                lineEnd++
+            }
+            var s = lineStart
+            var e = lineEnd
+            while (s < e && text[s].isWhitespace()) s++
+            while (e > s && text[e - 1].isWhitespace()) e--
+            sb.append(text, s, e)
+            if (lineEnd >= length) break
+            sb.append('\n')
+            lineStart = if (text[lineEnd] == '\r' && lineEnd + 1 < length && text[lineEnd + 1] == '\n') {
+                lineEnd + 2
+            } else {
+                lineEnd + 1
             }
-            if (paragraph.isNotEmpty()) {
-                if (contents.isEmpty() && includeTitle) {
-                    contents.add(paragraph)
+        }
+        return sb.toString()
+    }
+
+    /**
+     * 按换行拆分段落,去除首尾空白后添加缩进,每段只生成一个字符串
+     * @param titleFirst 为true时第一段是标题,不缩进
+     */
+    private fun addParagraphs(
+        contents: ArrayList<String>,
+        text: String,
+        start: Int,
+        paragraphIndent: String,
+        titleFirst: Boolean
+    ) {
+        val length = text.length
+        var lineStart = start
+        while (lineStart <= length) {
+            var lineEnd = text.indexOf('\n', lineStart)
+            if (lineEnd < 0) lineEnd = length
+            var s = lineStart
+            var e = lineEnd
+            while (s < e && isParagraphBlank(text[s])) s++
+            while (e > s && isParagraphBlank(text[e - 1])) e--
+            if (s < e) {
+                if ((contents.isEmpty() && titleFirst) || paragraphIndent.isEmpty()) {
+                    contents.add(text.substring(s, e))
                 } else {
-                    contents.add("${ReadBookConfig.paragraphIndent}$paragraph")
+                    val paragraph = StringBuilder(paragraphIndent.length + e - s)
+                        .append(paragraphIndent)
+                        .append(text, s, e)
+                    contents.add(paragraph.toString())
                 }
             }
+            lineStart = lineEnd + 1
+        }
+    }
+
+    private fun isParagraphBlank(c: Char): Boolean {
+        return c.code <= 0x20 || c == '　'
+    }
+
+    /**
+     * 影响正文处理结果的参数,用于区分磁盘缓存文件
+     */
+    private fun getVariant(
+        book: Book,
+        removeSameTitle: Boolean,
+        useReplace: Boolean,
+        chineseConvert: Boolean,
+        reSegment: Boolean
+    ): Int {
+        var variant = 0
+        if (removeSameTitle) variant = variant or 1
+        if (useReplace && book.getUseReplaceRule()) variant = variant or 2
+        if (reSegment && book.getReSegment()) variant = variant or 4
+        if (chineseConvert) variant = variant or (AppConfig.chineseConverterType shl 3)
+        return variant
+    }
+
+    /**
+     * 磁盘缓存key,规则指纹和原文变化后失效
+     */
+    private fun getDiskKey(variant: Int, chapter: BookChapter, content: String): String {
+        val fingerprint = if (variant and 2 != 0) rulesFingerprint else "-"
+        val titleHash = chapter.title.hashCode()
+        return "$variant:$fingerprint:$titleHash:${content.length}:${content.hashCode()}"
+    }
+
+    /**
+     * 正文缓存key,包含所有影响处理结果的参数
+     */
+    private fun getCacheKey(
+        book: Book,
+        chapter: BookChapter,
+        content: String,
+        removeSameTitle: Boolean,
+        includeTitle: Boolean,
+        useReplace: Boolean,
+        chineseConvert: Boolean,
+        reSegment: Boolean
+    ): String {
+        var flags = 0
+        if (removeSameTitle) flags = flags or 1
+        if (includeTitle) flags = flags or 2
+        if (useReplace && book.getUseReplaceRule()) flags = flags or 4
+        if (chineseConvert) flags = flags or 8
+        if (reSegment && book.getReSegment()) flags = flags or 16
+        return buildString {
+            append(bookName).append('\u0000')
+            append(bookOrigin).append('\u0000')
+            append(chapter.index).append('\u0000')
+            append(chapter.title).append('\u0000')
+            append(content.length).append(':').append(content.hashCode()).append('\u0000')
+            append(rulesVersion).append(':')
+            append(if (chineseConvert) AppConfig.chineseConverterType else 0).append(':')
+            append(flags).append(':')
+            append(ReadBookConfig.paragraphIndent)
         }
-        return BookContent(sameTitleRemoved, contents, effectiveReplaceRules)
     }
 
 }
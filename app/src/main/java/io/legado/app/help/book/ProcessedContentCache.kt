@@ -0,0 +1,90 @@
+package io.legado.app.help.book
+
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * 处理后正文的磁盘缓存,由预处理任务写入,阅读/搜索/导出读取
+ * 每章每种处理参数一个文件,第一行是key,包含规则指纹和原文校验,不一致时视为失效并删除
+ */
+object ProcessedContentCache {
+
+    const val DIR_NAME = "processed"
+
+    class Entry(
+        val sameTitleRemoved: Boolean,
+        /* 生效的替换规则id,未替换为null */
+        val ruleIds: List<Long>?,
+        val text: String
+    )
+
+    /**
+     * 书籍缓存目录下是否有预处理目录,避免没有预处理的书每章都访问磁盘
+     */
+    private val dirExists = ConcurrentHashMap<String, Boolean>()
+
+    fun get(bookDir: File, fileName: String, key: String): Entry? {
+        val file = getFile(bookDir, fileName) ?: return null
+        val data = kotlin.runCatching { file.readText() }.getOrNull() ?: return null
+        val keyEnd = data.indexOf('\n')
+        val flagEnd = data.indexOf('\n', keyEnd + 1)
+        val idsEnd = data.indexOf('\n', flagEnd + 1)
+        if (keyEnd < 0 || flagEnd < 0 || idsEnd < 0 || !data.startsWith(key) || keyEnd != key.length) {
+            file.delete()
+            return null
+        }
+        val ids = data.substring(flagEnd + 1, idsEnd)
+        return Entry(
+            data[keyEnd + 1] == '1',
+            if (ids == "-") null else ids.split(',').mapNotNull { it.toLongOrNull() },
+            data.substring(idsEnd + 1)
+        )
+    }
+
+    /**
+     * 只比较key,不读取正文
+     */
+    fun contains(bookDir: File, fileName: String, key: String): Boolean {
+        val file = getFile(bookDir, fileName) ?: return false
+        val firstLine = kotlin.runCatching {
+            file.bufferedReader().use { it.readLine() }
+        }.getOrNull()
+        if (firstLine == key) return true
+        file.delete()
+        return false
+    }
+
+    fun put(bookDir: File, fileName: String, key: String, entry: Entry) {
+        val dir = File(bookDir, DIR_NAME)
+        dir.mkdirs()
+        dirExists[bookDir.absolutePath] = true
+        val tmp = File(dir, "$fileName.tmp")
+        tmp.bufferedWriter().use {
+            it.write(key)
+            it.write('\n'.code)
+            it.write(if (entry.sameTitleRemoved) "1" else "0")
+            it.write('\n'.code)
+            it.write(entry.ruleIds?.joinToString(",") ?: "-")
+            it.write('\n'.code)
+            it.write(entry.text)
+        }
+        tmp.renameTo(File(dir, fileName))
+    }
+
+    fun clear(bookDirPath: String) {
+        dirExists.remove(File(bookDirPath).absolutePath)
+    }
+
+    fun clear() {
+        dirExists.clear()
+    }
+
+    private fun getFile(bookDir: File, fileName: String): File? {
+        val exists = dirExists.getOrPut(bookDir.absolutePath) {
+            File(bookDir, DIR_NAME).isDirectory
+        }
+        if (!exists) return null
+        return File(File(bookDir, DIR_NAME), fileName).takeIf { it.exists() }
+    }
+
+}
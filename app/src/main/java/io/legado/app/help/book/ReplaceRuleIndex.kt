@@ -0,0 +1,134 @@
+package io.legado.app.help.book
+
+import io.legado.app.data.appDb
+import io.legado.app.data.entities.ReplaceRule
+
+/**
+ * 启用的替换规则内存索引,代替每本书的LIKE查询
+ * 每本书(书名+书源)解析一次作用范围后缓存,规则变化时增量更新已解析的结果
+ * 作用范围语义与原查询一致: 范围为空或包含书名/书源,且排除范围不包含书名/书源,ASCII不区分大小写
+ */
+object ReplaceRuleIndex {
+
+    private class Entry(val rule: ReplaceRule) {
+        val scope = rule.scope?.let { asciiLowercase(it) }
+        val excludeScope = rule.excludeScope?.let { asciiLowercase(it) }
+
+        fun matches(name: String, origin: String): Boolean {
+            if (!scope.isNullOrEmpty() && !scope.contains(name) && !scope.contains(origin)) {
+                return false
+            }
+            if (excludeScope != null && (excludeScope.contains(name) || excludeScope.contains(origin))) {
+                return false
+            }
+            return true
+        }
+    }
+
+    /**
+     * 一本书解析后的规则,按排序排列
+     */
+    private class Resolved(val name: String, val origin: String) {
+        val titleRules = arrayListOf<ReplaceRule>()
+        val contentRules = arrayListOf<ReplaceRule>()
+
+        fun add(entry: Entry) {
+            if (!entry.matches(name, origin)) return
+            if (entry.rule.scopeTitle) insert(titleRules, entry.rule)
+            if (entry.rule.scopeContent) insert(contentRules, entry.rule)
+        }
+
+        fun remove(id: Long) {
+            titleRules.removeAll { it.id == id }
+            contentRules.removeAll { it.id == id }
+        }
+
+        private fun insert(list: ArrayList<ReplaceRule>, rule: ReplaceRule) {
+            var index = list.size
+            while (index > 0 && list[index - 1].order > rule.order) index--
+            list.add(index, rule)
+        }
+    }
+
+    private var entries: ArrayList<Entry>? = null
+    private val resolvedMap = hashMapOf<String, Resolved>()
+
+    fun getTitleRules(bookName: String, bookOrigin: String): List<ReplaceRule> {
+        return synchronized(this) { resolve(bookName, bookOrigin).titleRules.toList() }
+    }
+
+    fun getContentRules(bookName: String, bookOrigin: String): List<ReplaceRule> {
+        return synchronized(this) { resolve(bookName, bookOrigin).contentRules.toList() }
+    }
+
+    /**
+     * 从数据库重新加载全部启用的规则
+     */
+    @Synchronized
+    fun reload() {
+        entries = null
+        resolvedMap.clear()
+    }
+
+    /**
+     * 规则已修改或新增,增量更新
+     */
+    @Synchronized
+    fun update(vararg rules: ReplaceRule) {
+        val entries = entries ?: return
+        rules.forEach { rule ->
+            entries.removeAll { it.rule.id == rule.id }
+            resolvedMap.values.forEach { it.remove(rule.id) }
+            if (rule.isEnabled) {
+                val entry = Entry(rule.copy())
+                var index = entries.size
+                while (index > 0 && entries[index - 1].rule.order > rule.order) index--
+                entries.add(index, entry)
+                resolvedMap.values.forEach { it.add(entry) }
+            }
+        }
+    }
+
+    /**
+     * 规则已删除,增量更新
+     */
+    @Synchronized
+    fun remove(vararg rules: ReplaceRule) {
+        val entries = entries ?: return
+        rules.forEach { rule ->
+            entries.removeAll { it.rule.id == rule.id }
+            resolvedMap.values.forEach { it.remove(rule.id) }
+        }
+    }
+
+    private fun resolve(bookName: String, bookOrigin: String): Resolved {
+        val key = bookName + '\u0000' + bookOrigin
+        resolvedMap[key]?.let {
+            return it
+        }
+        val entries = entries ?: appDb.replaceRuleDao.allEnabled.mapTo(arrayListOf()) {
+            Entry(it)
+        }.also {
+            entries = it
+        }
+        val resolved = Resolved(asciiLowercase(bookName), asciiLowercase(bookOrigin))
+        entries.forEach {
+            resolved.add(it)
+        }
+        resolvedMap[key] = resolved
+        return resolved
+    }
+
+    /**
+     * SQLite的LIKE只对ASCII字母不区分大小写
+     */
+    private fun asciiLowercase(text: String): String {
+        if (text.none { it in 'A'..'Z' }) return text
+        val chars = text.toCharArray()
+        for (i in chars.indices) {
+            if (chars[i] in 'A'..'Z') chars[i] = chars[i] + 32
+        }
+        return String(chars)
+    }
+
+}
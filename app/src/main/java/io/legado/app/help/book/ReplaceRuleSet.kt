@@ -0,0 +1,198 @@
+package io.legado.app.help.book
+
+import io.legado.app.data.entities.ReplaceRule
+import io.legado.app.utils.AhoCorasick
+import java.util.BitSet
+
+/**
+ * 编译后的替换规则集,规则更新时重建
+ * 正则只编译一次,非正则规则的关键词和正则规则的必需字面量合并到一个多模式匹配器
+ * 文本中不含关键词的规则直接跳过,规则顺序不变
+ */
+class ReplaceRuleSet(rules: List<ReplaceRule>) {
+
+    class Item(
+        val rule: ReplaceRule,
+        val regex: Regex?,
+        /* 在匹配器中的关键词序号,-1表示无法预筛选 */
+        val keywordIndex: Int
+    ) {
+        val counter = ReplaceRuleStats.getCounter(rule)
+    }
+
+    val items: List<Item>
+
+    private val matcher: AhoCorasick?
+
+    init {
+        val keywords = arrayListOf<String>()
+        items = rules.mapNotNull { rule ->
+            if (rule.pattern.isEmpty()) return@mapNotNull null
+            val regex = if (rule.isRegex) {
+                kotlin.runCatching { rule.pattern.toRegex() }.getOrNull()
+                    ?: return@mapNotNull Item(rule, null, -1)
+            } else null
+            val keyword = if (regex == null) rule.pattern else requiredLiteral(rule.pattern)
+            val keywordIndex = if (keyword.isNullOrEmpty()) -1 else {
+                keywords.add(keyword)
+                keywords.lastIndex
+            }
+            Item(rule, regex, keywordIndex)
+        }
+        matcher = if (keywords.isEmpty()) null else AhoCorasick(keywords)
+    }
+
+    val isEmpty get() = items.isEmpty()
+
+    /**
+     * 规则预筛选,文本变化后需重新调用[scan]
+     */
+    inner class Filter {
+
+        private var hits: BitSet? = null
+
+        /**
+         * 文本可能被该规则匹配
+         */
+        fun mayMatch(item: Item, text: CharSequence): Boolean {
+            if (item.keywordIndex < 0 || matcher == null) return true
+            val hits = hits ?: matcher.scan(text).also { hits = it }
+            return hits[item.keywordIndex]
+        }
+
+        /**
+         * 文本已被替换,之前的扫描结果失效
+         */
+        fun textChanged() {
+            hits = null
+        }
+
+    }
+
+    companion object {
+
+        /**
+         * 提取正则匹配时一定出现的最长字面量,无法确定时返回null
+         * 只处理最外层,含最外层分支或忽略大小写等标志的正则不提取
+         */
+        fun requiredLiteral(pattern: String): String? {
+            var best = ""
+            val run = StringBuilder()
+            var depth = 0
+            var i = 0
+            val length = pattern.length
+
+            fun endRun() {
+                if (depth == 0 && run.length > best.length) best = run.toString()
+                run.setLength(0)
+            }
+
+            while (i < length) {
+                val c = pattern[i]
+                when (c) {
+                    '\\' -> {
+                        if (i + 1 >= length) return null
+                        val e = pattern[i + 1]
+                        i += 2
+                        if (e.isLetterOrDigit()) {
+                            when (e) {
+                                'Q' -> return null
+                                'p', 'P', 'N', 'k', 'x' -> if (i < length && (pattern[i] == '{' || pattern[i] == '<')) {
+                                    val close = if (pattern[i] == '{') '}' else '>'
+                                    val end = pattern.indexOf(close, i)
+                                    if (end < 0) return null
+                                    i = end + 1
+                                } else if (e == 'x') {
+                                    i += 2
+                                } else if (e == 'p' || e == 'P') {
+                                    i += 1
+                                }
+
+                                'u' -> i += 4
+                                'c' -> i += 1
+                                else -> while (i < length && pattern[i].isDigit()) i++
+                            }
+                            endRun()
+                        } else {
+                            if (depth == 0) run.append(e)
+                        }
+                        continue
+                    }
+
+                    '[' -> {
+                        endRun()
+                        i = skipClass(pattern, i) ?: return null
+                        continue
+                    }
+
+                    '(' -> {
+                        endRun()
+                        if (i + 1 < length && pattern[i + 1] == '?') {
+                            //标志位
+                            var j = i + 2
+                            while (j < length && (pattern[j].isLetter() || pattern[j] == '-')) {
+                                if (pattern[j] == 'i' || pattern[j] == 'x') return null
+                                j++
+                            }
+                        }
+                        depth++
+                    }
+
+                    ')' -> {
+                        endRun()
+                        depth--
+                    }
+
+                    '|' -> {
+                        if (depth == 0) return null
+                        endRun()
+                    }
+
+                    '?', '*' -> {
+                        if (run.isNotEmpty()) run.setLength(run.length - 1)
+                        endRun()
+                    }
+
+                    '{' -> {
+                        if (run.isNotEmpty()) run.setLength(run.length - 1)
+                        endRun()
+                        val end = pattern.indexOf('}', i)
+                        if (end < 0) return null
+                        i = end
+                    }
+
+                    '+', '.', '^', '$' -> endRun()
+
+                    else -> if (depth == 0) run.append(c)
+                }
+                i++
+            }
+            endRun()
+            return best.ifEmpty { null }
+        }
+
+        /**
+         * 跳过字符类,返回']'之后的位置
+         */
+        private fun skipClass(pattern: String, start: Int): Int? {
+            var i = start + 1
+            if (i < pattern.length && pattern[i] == '^') i++
+            if (i < pattern.length && pattern[i] == ']') i++
+            var depth = 1
+            while (i < pattern.length) {
+                when (pattern[i]) {
+                    '\\' -> i++
+                    '[' -> depth++
+                    ']' -> {
+                        depth--
+                        if (depth == 0) return i + 1
+                    }
+                }
+                i++
+            }
+            return null
+        }
+
+    }
+
+}
@@ -0,0 +1,129 @@
+package io.legado.app.help.book
+
+import io.legado.app.constant.AppLog
+import io.legado.app.data.entities.ReplaceRule
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * 正文替换规则耗时统计,只保存在内存中
+ * 计数器在构建规则集时分配,替换时只更新计数,不分配对象
+ */
+object ReplaceRuleStats {
+
+    /**
+     * 单章耗时超过此值的规则视为慢规则
+     */
+    const val SLOW_RULE_MS = 50L
+
+    private const val SLOW_RULE_NANOS = SLOW_RULE_MS * 1_000_000
+
+    private const val CALLS = 0
+    private const val SKIPPED = 1
+    private const val MATCHES = 2
+    private const val TOTAL_NANOS = 3
+    private const val MAX_NANOS = 4
+    private const val LENGTH_DELTA = 5
+
+    private val counters = ConcurrentHashMap<Long, Counter>()
+
+    class Counter(val ruleId: Long) {
+
+        @Volatile
+        var ruleName: String = ""
+
+        private val values = AtomicLongArray(6)
+        private val slowReported = AtomicBoolean(false)
+
+        operator fun get(index: Int) = values[index]
+
+        /**
+         * 预筛选跳过
+         */
+        fun skip() {
+            values.incrementAndGet(SKIPPED)
+        }
+
+        /**
+         * 记录一次替换
+         * @param nanos 耗时
+         * @param changed 是否改变了内容
+         * @param lengthDelta 替换后长度减替换前长度
+         */
+        fun record(nanos: Long, changed: Boolean, lengthDelta: Int) {
+            values.incrementAndGet(CALLS)
+            values.addAndGet(TOTAL_NANOS, nanos)
+            if (changed) {
+                values.incrementAndGet(MATCHES)
+                values.addAndGet(LENGTH_DELTA, lengthDelta.toLong())
+            }
+            var max = values[MAX_NANOS]
+            while (nanos > max && !values.compareAndSet(MAX_NANOS, max, nanos)) {
+                max = values[MAX_NANOS]
+            }
+            if (nanos > SLOW_RULE_NANOS && slowReported.compareAndSet(false, true)) {
+                AppLog.put("替换规则 $ruleName 单章耗时 ${nanos / 1_000_000}ms,建议优化或停用")
+            }
+        }
+
+        fun clear() {
+            for (i in 0 until values.length()) {
+                values[i] = 0
+            }
+            slowReported.set(false)
+        }
+
+    }
+
+    data class Stat(
+        val id: Long,
+        val name: String,
+        /* 实际执行次数 */
+        val calls: Long,
+        /* 预筛选跳过次数 */
+        val skipped: Long,
+        /* 改变了内容的次数 */
+        val matches: Long,
+        val totalMs: Double,
+        val avgMs: Double,
+        val maxMs: Double,
+        /* 累计长度变化,删除内容时为负 */
+        val lengthDelta: Long,
+        val slow: Boolean
+    )
+
+    fun getCounter(rule: ReplaceRule): Counter {
+        return counters.getOrPut(rule.id) { Counter(rule.id) }.also {
+            it.ruleName = rule.name
+        }
+    }
+
+    /**
+     * 统计结果,按累计耗时降序
+     */
+    fun getStats(): List<Stat> {
+        return counters.values.map {
+            val calls = it[CALLS]
+            val totalMs = it[TOTAL_NANOS] / 1e6
+            val maxMs = it[MAX_NANOS] / 1e6
+            Stat(
+                id = it.ruleId,
+                name = it.ruleName,
+                calls = calls,
+                skipped = it[SKIPPED],
+                matches = it[MATCHES],
+                totalMs = totalMs,
+                avgMs = if (calls > 0) totalMs / calls else 0.0,
+                maxMs = maxMs,
+                lengthDelta = it[LENGTH_DELTA],
+                slow = maxMs > SLOW_RULE_MS
+            )
+        }.sortedByDescending { it.totalMs }
+    }
+
+    fun clear() {
+        counters.values.forEach { it.clear() }
+    }
+
+}
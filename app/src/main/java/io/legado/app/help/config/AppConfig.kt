@@ -444,6 +444,10 @@ object AppConfig : SharedPreferences.OnSharedPreferenceChangeListener {
 
     val replaceEnableDefault get() = appCtx.getPrefBoolean(PreferKey.replaceEnableDefault, true)
 
+    val packChapterCache get() = appCtx.getPrefBoolean(PreferKey.packChapterCache, false)
+
+    val compressChapterCache get() = appCtx.getPrefBoolean(PreferKey.compressChapterCache, false)
+
     val webDavDir get() = appCtx.getPrefString(PreferKey.webDavDir, "legado")
 
     val webDavDeviceName get() = appCtx.getPrefString(PreferKey.webDavDeviceName, Build.MODEL)
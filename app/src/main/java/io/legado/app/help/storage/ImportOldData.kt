@@ -14,6 +14,7 @@ import io.legado.app.data.entities.BookSource
 import io.legado.app.data.entities.rule.*
 import io.legado.app.exception.NoStackTraceException
 import io.legado.app.help.ReplaceAnalyzer
+import io.legado.app.help.book.ReplaceRuleIndex
 import io.legado.app.utils.*
 import splitties.init.appCtx
 import java.io.File
@@ -114,6 +115,7 @@ object ImportOldData {
         val rules = ReplaceAnalyzer.jsonToReplaceRules(json).getOrNull()
         rules?.let {
             appDb.replaceRuleDao.insert(*rules.toTypedArray())
+            ReplaceRuleIndex.reload()
             return rules.size
         }
         return 0
@@ -162,9 +162,8 @@ object AudioPlay {
             book.durChapterTime = System.currentTimeMillis()
             Coroutine.async {
                 appDb.bookChapterDao.getChapter(book.bookUrl, book.durChapterIndex)?.let {
-                    book.durChapterTitle = it.getDisplayTitle(
-                        ContentProcessor.get(book.name, book.origin).getTitleReplaceRules()
-                    )
+                    book.durChapterTitle =
+                        ContentProcessor.get(book.name, book.origin).getDisplayTitle(it)
                 }
                 book.save()
             }
@@ -1,6 +1,7 @@
 package io.legado.app.model
 
 import android.content.Context
+import android.util.SparseIntArray
 import io.legado.app.constant.AppLog
 import io.legado.app.constant.EventBus
 import io.legado.app.constant.IntentAction
@@ -10,6 +11,7 @@ import io.legado.app.data.entities.BookChapter
 import io.legado.app.data.entities.BookSource
 import io.legado.app.exception.ConcurrentException
 import io.legado.app.help.book.BookHelp
+import io.legado.app.help.book.ChapterIndexSet
 import io.legado.app.help.book.isLocal
 import io.legado.app.help.coroutine.Coroutine
 import io.legado.app.model.webBook.WebBook
@@ -22,6 +24,7 @@ import kotlinx.coroutines.Dispatchers.IO
 import kotlinx.coroutines.delay
 
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.coroutines.CoroutineContext
 
 object CacheBook {
@@ -82,9 +85,19 @@ object CacheBook {
         }
     }
 
+    private val waitTotal = AtomicInteger()
+    private val onDownloadTotal = AtomicInteger()
+    private val successTotal = AtomicInteger()
+    private val errorTotal = AtomicInteger()
+
+    /**
+     * 每本书的下载成功/失败记录,书籍下载完成从[cacheBookMap]移除后依然保留
+     */
+    private val downloadRecordMap = ConcurrentHashMap<String, DownloadRecord>()
+
     val downloadSummary: String
         get() {
-            return "正在下载:${onDownloadCount}|等待中:${waitCount}|失败:${errorDownloadMap.count()}|成功:${successDownloadSet.size}"
+            return "正在下载:${onDownloadTotal.get()}|等待中:${waitTotal.get()}|失败:${errorTotal.get()}|成功:${successTotal.get()}"
         }
 
     val isRun: Boolean
@@ -96,35 +109,69 @@ object CacheBook {
             return isRun
         }
 
-    private val waitCount: Int
-        get() {
-            var count = 0
-            cacheBookMap.forEach {
-                count += it.value.waitCount
-            }
-            return count
+    val onDownloadCount: Int
+        get() = onDownloadTotal.get()
+
+    /**
+     * 清除下载成功/失败记录,下载中的书籍继续使用原记录对象,清空内容后保留
+     */
+    fun clearDownloadRecord() {
+        downloadRecordMap.values.forEach { it.clear() }
+        downloadRecordMap.keys.retainAll(cacheBookMap.keys)
+    }
+
+    private fun getDownloadRecord(bookUrl: String): DownloadRecord {
+        return downloadRecordMap.getOrPut(bookUrl) { DownloadRecord() }
+    }
+
+    /**
+     * 单本书的下载记录
+     */
+    private class DownloadRecord {
+
+        private val successSet = ChapterIndexSet(successTotal)
+        private val errorSet = ChapterIndexSet(errorTotal)
+        private val errorCounts = SparseIntArray()
+
+        @Synchronized
+        fun onSuccess(index: Int) {
+            successSet.add(index)
+            errorSet.remove(index)
+            errorCounts.delete(index)
         }
 
-    val onDownloadCount: Int
-        get() {
-            var count = 0
-            cacheBookMap.forEach {
-                count += it.value.onDownloadCount
-            }
-            return count
+        @Synchronized
+        fun onError(index: Int) {
+            errorSet.add(index)
+            errorCounts.put(index, errorCounts[index] + 1)
         }
 
-    val successDownloadSet = linkedSetOf<String>()
-    val errorDownloadMap = hashMapOf<String, Int>()
+        @Synchronized
+        fun errorCount(index: Int): Int {
+            return errorCounts[index]
+        }
+
+        @Synchronized
+        fun clear() {
+            successSet.clear()
+            errorSet.clear()
+            errorCounts.clear()
+        }
+
+    }
 
     class CacheBookModel(var bookSource: BookSource, var book: Book) {
 
-        private val waitDownloadSet = linkedSetOf<Int>()
-        private val onDownloadSet = linkedSetOf<Int>()
+        private val waitDownloadSet = ChapterIndexSet(waitTotal)
+
+        //失败重试的章节,按失败先后排在待下载章节之后
+        private val retryDownloadSet = linkedSetOf<Int>()
+        private val onDownloadSet = ChapterIndexSet(onDownloadTotal)
+        private val downloadRecord = getDownloadRecord(book.bookUrl)
         private var isStopped = false
         private var waitingRetry = false
 
-        val waitCount get() = waitDownloadSet.size
+        val waitCount get() = waitDownloadSet.size + retryDownloadSet.size
         val onDownloadCount get() = onDownloadSet.size
 
         init {
@@ -133,7 +180,9 @@ object CacheBook {
 
         @Synchronized
         fun isRun(): Boolean {
-            return waitDownloadSet.size > 0 || onDownloadSet.size > 0
+            return waitDownloadSet.isNotEmpty()
+                    || retryDownloadSet.isNotEmpty()
+                    || onDownloadSet.isNotEmpty()
         }
 
         @Synchronized
@@ -144,6 +193,8 @@ object CacheBook {
         @Synchronized
         fun stop() {
             waitDownloadSet.clear()
+            waitTotal.addAndGet(-retryDownloadSet.size)
+            retryDownloadSet.clear()
             isStopped = true
             postEvent(EventBus.UP_DOWNLOAD, book.bookUrl)
         }
@@ -151,27 +202,23 @@ object CacheBook {
         @Synchronized
         fun addDownload(start: Int, end: Int) {
             isStopped = false
-            for (i in start..end) {
-                if (!onDownloadSet.contains(i)) {
-                    waitDownloadSet.add(i)
-                }
-            }
+            //重新加入的范围按顺序下载
+            retryDownloadSet.filter { it in start..end }.forEach { removeWait(it) }
+            waitDownloadSet.addRange(start, end, onDownloadSet)
             postEvent(EventBus.UP_DOWNLOAD, book.bookUrl)
         }
 
         @Synchronized
         private fun onSuccess(chapter: BookChapter) {
             onDownloadSet.remove(chapter.index)
-            successDownloadSet.add(chapter.primaryStr())
-            errorDownloadMap.remove(chapter.primaryStr())
+            downloadRecord.onSuccess(chapter.index)
         }
 
         @Synchronized
         private fun onPreError(chapter: BookChapter, error: Throwable) {
             waitingRetry = true
             if (error !is ConcurrentException) {
-                errorDownloadMap[chapter.primaryStr()] =
-                    (errorDownloadMap[chapter.primaryStr()] ?: 0) + 1
+                downloadRecord.onError(chapter.index)
             }
             onDownloadSet.remove(chapter.index)
         }
@@ -179,8 +226,10 @@ object CacheBook {
         @Synchronized
         private fun onPostError(chapter: BookChapter, error: Throwable) {
             //重试3次
-            if ((errorDownloadMap[chapter.primaryStr()] ?: 0) < 3 && !isStopped) {
-                waitDownloadSet.add(chapter.index)
+            if (downloadRecord.errorCount(chapter.index) < 3 && !isStopped) {
+                if (chapter.index !in waitDownloadSet && retryDownloadSet.add(chapter.index)) {
+                    waitTotal.incrementAndGet()
+                }
             } else {
                 AppLog.put(
                     "下载${book.name}-${chapter.title}失败\n${error.localizedMessage}",
@@ -202,21 +251,31 @@ object CacheBook {
             if (!isStopped) waitDownloadSet.add(index)
         }
 
+        /**
+         * 从待下载和重试列表移除
+         */
+        private fun removeWait(index: Int) {
+            waitDownloadSet.remove(index)
+            if (retryDownloadSet.remove(index)) {
+                waitTotal.decrementAndGet()
+            }
+        }
+
         @Synchronized
         private fun onFinally() {
-            if (waitDownloadSet.isEmpty() && onDownloadSet.isEmpty()) {
+            if (!isRun()) {
                 cacheBookMap.remove(book.bookUrl)
             }
             postEvent(EventBus.UP_DOWNLOAD, book.bookUrl)
         }
 
         /**
-         * 从待下载列表内取第一条下载
+         * 从待下载列表内取第一条下载,待下载列表为空后再取失败重试的章节
          */
         @Synchronized
         fun download(scope: CoroutineScope, context: CoroutineContext) {
             postEvent(EventBus.UP_DOWNLOAD, book.bookUrl)
-            val chapterIndex = waitDownloadSet.firstOrNull()
+            val chapterIndex = waitDownloadSet.firstOrNull() ?: retryDownloadSet.firstOrNull()
             if (chapterIndex == null) {
                 if (onDownloadSet.isEmpty()) {
                     cacheBookMap.remove(book.bookUrl)
@@ -224,24 +283,24 @@ object CacheBook {
                 return
             }
             if (onDownloadSet.contains(chapterIndex)) {
-                waitDownloadSet.remove(chapterIndex)
+                removeWait(chapterIndex)
                 return
             }
             val chapter = appDb.bookChapterDao.getChapter(book.bookUrl, chapterIndex) ?: let {
-                waitDownloadSet.remove(chapterIndex)
+                removeWait(chapterIndex)
                 return
             }
             if (chapter.isVolume) {
                 /** 修正下载计数 */
                 postEvent(EventBus.SAVE_CONTENT, Pair(book, chapter))
-                waitDownloadSet.remove(chapterIndex)
+                removeWait(chapterIndex)
                 return
             }
             if (BookHelp.hasImageContent(book, chapter)) {
-                waitDownloadSet.remove(chapterIndex)
+                removeWait(chapterIndex)
                 return
             }
-            waitDownloadSet.remove(chapterIndex)
+            removeWait(chapterIndex)
             onDownloadSet.add(chapterIndex)
             if (BookHelp.hasContent(book, chapter)) {
                 Coroutine.async(executeContext = context) {
@@ -296,7 +355,7 @@ object CacheBook {
             }
             postEvent(EventBus.UP_DOWNLOAD, book.bookUrl)
             onDownloadSet.add(chapter.index)
-            waitDownloadSet.remove(chapter.index)
+            removeWait(chapter.index)
             WebBook.getContent(scope, bookSource, book, chapter, executeContext = IO)
                 .onSuccess { content ->
                     onSuccess(chapter)
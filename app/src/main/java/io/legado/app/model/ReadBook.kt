@@ -4,6 +4,7 @@ import io.legado.app.constant.AppLog
 import io.legado.app.data.appDb
 import io.legado.app.data.entities.*
 import io.legado.app.help.AppWebDav
+import io.legado.app.help.book.BookContent
 import io.legado.app.help.book.BookHelp
 import io.legado.app.help.book.ContentProcessor
 import io.legado.app.help.book.isLocal
@@ -17,13 +18,18 @@ import io.legado.app.ui.book.read.page.entities.TextChapter
 import io.legado.app.ui.book.read.page.provider.ChapterProvider
 import io.legado.app.utils.stackTraceStr
 import io.legado.app.utils.toastOnUi
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers.IO
 import kotlinx.coroutines.MainScope
 import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.asCoroutineDispatcher
 import kotlinx.coroutines.delay
+import kotlinx.coroutines.ensureActive
 import kotlinx.coroutines.launch
 import splitties.init.appCtx
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
 import kotlin.math.min
 
 
@@ -59,6 +65,18 @@ object ReadBook : CoroutineScope by MainScope() {
     var contentProcessor: ContentProcessor? = null
     val downloadScope = CoroutineScope(SupervisorJob() + IO)
 
+    /* 预排版章节数,当前章节后第2章开始 */
+    private const val preLayoutNum = 2
+    var preLayoutTask: Coroutine<*>? = null
+    private var preLayoutIndex = -1
+    private var preLayoutVersion = -1
+    private val preparedChapters = ConcurrentHashMap<Int, PreparedChapter>()
+    private val preLayoutDispatcher = Executors.newSingleThreadExecutor {
+        Thread(it, "ReadBookPreLayout").apply {
+            priority = Thread.MIN_PRIORITY
+        }
+    }.asCoroutineDispatcher()
+
     //暂时保存跳转前进度
     fun saveCurrentBookProcess() {
         if (lastBookPress != null) return //避免进度条连续跳转不能覆盖最初的进度记录
@@ -137,6 +155,7 @@ object ReadBook : CoroutineScope by MainScope() {
         prevTextChapter = null
         curTextChapter = null
         nextTextChapter = null
+        clearPreparedChapters()
     }
 
     fun uploadProgress() {
@@ -227,7 +246,10 @@ object ReadBook : CoroutineScope by MainScope() {
         toLast: Boolean = true
     ): Boolean {
         if (durChapterIndex > 0) {
-            durChapterPos = if (toLast) prevTextChapter?.lastReadLength ?: Int.MAX_VALUE else 0
+            durChapterPos = if (toLast) {
+                //排版未完成时最后一页还没排出来,排好后定位到最后一页
+                prevTextChapter?.takeIf { it.isCompleted }?.lastReadLength ?: Int.MAX_VALUE
+            } else 0
             durChapterIndex--
             nextTextChapter = curTextChapter
             curTextChapter = prevTextChapter
@@ -248,7 +270,7 @@ object ReadBook : CoroutineScope by MainScope() {
     }
 
     fun skipToPage(index: Int, success: (() -> Unit)? = null) {
-        durChapterPos = curTextChapter?.getReadLength(index) ?: index
+        durChapterPos = curTextChapter?.getEstimatedReadLength(index) ?: index
         callBack?.upContent {
             success?.invoke()
         }
@@ -277,6 +299,7 @@ object ReadBook : CoroutineScope by MainScope() {
         }
         upReadTime()
         preDownload()
+        preLayout()
     }
 
     /**
@@ -296,6 +319,14 @@ object ReadBook : CoroutineScope by MainScope() {
             return curTextChapter?.getPageIndexByCharIndex(durChapterPos) ?: durChapterPos
         }
 
+    /**
+     * 进度条页数,排版未完成时按估算页数
+     */
+    val durPageProgress: Int
+        get() {
+            return curTextChapter?.getEstimatedPageIndex(durChapterPos) ?: durChapterPos
+        }
+
     /**
      * chapterOnDur: 0为当前页,1为下一页,-1为上一页
      */
@@ -317,6 +348,7 @@ object ReadBook : CoroutineScope by MainScope() {
         resetPageOffset: Boolean,
         success: (() -> Unit)? = null
     ) {
+        clearPreparedChapters()
         loadContent(durChapterIndex, resetPageOffset = resetPageOffset) {
             success?.invoke()
         }
@@ -448,44 +480,126 @@ object ReadBook : CoroutineScope by MainScope() {
         if (chapter.index !in durChapterIndex - 1..durChapterIndex + 1) {
             return
         }
+        var partialChapter: TextChapter? = null
         Coroutine.async {
             val contentProcessor = ContentProcessor.get(book.name, book.origin)
-            val displayTitle = chapter.getDisplayTitle(
-                contentProcessor.getTitleReplaceRules(),
+            val displayTitle = contentProcessor.getDisplayTitle(
+                chapter,
                 book.getUseReplaceRule()
             )
             val contents = contentProcessor
                 .getContent(book, chapter, content, includeTitle = false)
-            val textChapter = ChapterProvider
-                .getTextChapter(book, chapter, displayTitle, contents, chapterSize)
-            when (val offset = chapter.index - durChapterIndex) {
-                0 -> {
-                    curTextChapter = textChapter
-                    if (upContent) callBack?.upContent(offset, resetPageOffset)
-                    callBack?.upMenuView()
-                    curPageChanged()
-                    callBack?.contentLoadFinish()
-                }
+            takePreparedChapter(chapter.index, displayTitle, contents)?.let {
+                setTextChapter(it, upContent, resetPageOffset)
+                return@async
+            }
+            //当前章节排好阅读位置所在页就先显示,剩下的页继续排版,朗读时需要完整章节
+            //滚动阅读时下一章排好开头两页就先接上,滚动不用等整章排完
+            val progressive = !BaseReadAloudService.isRun && (chapter.index == durChapterIndex
+                    || chapter.index == durChapterIndex + 1 && pageAnim() == 3)
+            val startTime = System.currentTimeMillis()
+            var published = false
+            val textChapter = ChapterProvider.getTextChapter(
+                book, chapter, displayTitle, contents, chapterSize
+            ) { laidOutChapter ->
+                if (!progressive) return@getTextChapter
+                if (!published) {
+                    when (chapter.index) {
+                        durChapterIndex -> if (!laidOutChapter.isLaidOut(durChapterPos)) {
+                            return@getTextChapter
+                        }
 
-                -1 -> {
-                    prevTextChapter = textChapter
-                    if (upContent) callBack?.upContent(offset, resetPageOffset)
-                }
+                        durChapterIndex + 1 -> if (laidOutChapter.pageSize < 2) {
+                            return@getTextChapter
+                        }
 
-                1 -> {
-                    nextTextChapter = textChapter
-                    if (upContent) callBack?.upContent(offset, resetPageOffset)
+                        else -> return@getTextChapter
+                    }
+                    published = true
+                    partialChapter = laidOutChapter
+                    AppLog.putDebug(
+                        "${chapter.title} 首屏排版耗时${System.currentTimeMillis() - startTime}ms"
+                    )
+                    setTextChapter(laidOutChapter, upContent, resetPageOffset)
+                } else if (curTextChapter === laidOutChapter
+                    && durPageIndex >= laidOutChapter.pageSize - 3
+                ) {
+                    //翻到了排版位置附近,刷新后续页
+                    callBack?.upContent(0, false)
                 }
             }
-            Unit
+            if (progressive) {
+                AppLog.putDebug(
+                    "${chapter.title} 排版耗时${System.currentTimeMillis() - startTime}ms,共${textChapter.pageSize}页"
+                )
+            }
+            if (!published) {
+                setTextChapter(textChapter, upContent, resetPageOffset)
+            } else {
+                upLaidOutChapter(textChapter)
+            }
         }.onError {
             AppLog.put("ChapterProvider ERROR", it)
             appCtx.toastOnUi("ChapterProvider ERROR:\n${it.stackTraceStr}")
+            partialChapter?.let { completePartialChapter(it) }
+        }.onCancel {
+            partialChapter?.let { completePartialChapter(it) }
         }.onSuccess {
             success?.invoke()
         }
     }
 
+    /**
+     * 已显示部分页的章节排版出错或取消时按已排好的页结束排版,
+     * 否则翻页一直停在已排部分的末尾,朗读也会一直等待
+     */
+    private fun completePartialChapter(textChapter: TextChapter) {
+        if (textChapter.isCompleted) return
+        textChapter.completed()
+        upLaidOutChapter(textChapter)
+    }
+
+    /**
+     * 已显示的章节排版结束,排版过程中可能已经翻到前后章节,刷新所在位置
+     */
+    private fun upLaidOutChapter(textChapter: TextChapter) {
+        when {
+            textChapter === curTextChapter -> {
+                callBack?.upContent(0, false)
+                callBack?.upMenuView()
+            }
+
+            textChapter === prevTextChapter -> callBack?.upContent(-1, false)
+            textChapter === nextTextChapter -> callBack?.upContent(1, false)
+        }
+    }
+
+    private fun setTextChapter(
+        textChapter: TextChapter,
+        upContent: Boolean,
+        resetPageOffset: Boolean
+    ) {
+        when (val offset = textChapter.position - durChapterIndex) {
+            0 -> {
+                curTextChapter = textChapter
+                if (upContent) callBack?.upContent(offset, resetPageOffset)
+                callBack?.upMenuView()
+                curPageChanged()
+                callBack?.contentLoadFinish()
+            }
+
+            -1 -> {
+                prevTextChapter = textChapter
+                if (upContent) callBack?.upContent(offset, resetPageOffset)
+            }
+
+            1 -> {
+                nextTextChapter = textChapter
+                if (upContent) callBack?.upContent(offset, resetPageOffset)
+            }
+        }
+    }
+
     @Synchronized
     fun upToc() {
         val bookSource = bookSource ?: return
@@ -525,9 +639,8 @@ object ReadBook : CoroutineScope by MainScope() {
             book.durChapterPos = durChapterPos
             if (chapterChanged) {
                 appDb.bookChapterDao.getChapter(book.bookUrl, durChapterIndex)?.let {
-                    book.durChapterTitle = it.getDisplayTitle(
-                        ContentProcessor.get(book.name, book.origin).getTitleReplaceRules()
-                    )
+                    book.durChapterTitle =
+                        ContentProcessor.get(book.name, book.origin).getDisplayTitle(it)
                 }
             }
             appDb.bookDao.update(book)
@@ -566,6 +679,98 @@ object ReadBook : CoroutineScope by MainScope() {
         }
     }
 
+    /**
+     * 预排版,在低优先级线程提前处理并排版后面几章,翻到新章节时直接使用
+     * 只处理已缓存的章节,跳转章节时取消,排版参数变化后丢弃
+     * 同一章节翻页时不重复执行,取消,出错或排版参数变化后才重新执行
+     */
+    private fun preLayout() {
+        val book = book ?: return
+        if (AppConfig.preDownloadNum < 2) return
+        val baseIndex = durChapterIndex
+        //排版参数和预下载章节数都影响预排版结果
+        val version = ChapterProvider.layoutVersion * 31 + AppConfig.preDownloadNum
+        if (preLayoutIndex == baseIndex && preLayoutVersion == version) return
+        preLayoutTask?.cancel()
+        preLayoutIndex = baseIndex
+        preLayoutVersion = version
+        val startIndex = baseIndex + 2
+        val layoutEndIndex = min(baseIndex + 1 + preLayoutNum, chapterSize - 1)
+        val processEndIndex = min(baseIndex + AppConfig.preDownloadNum, chapterSize - 1)
+        preparedChapters.keys.forEach {
+            if (it !in baseIndex - 1..layoutEndIndex) preparedChapters.remove(it)
+        }
+        val task = Coroutine.async(context = preLayoutDispatcher) {
+            val contentProcessor = ContentProcessor.get(book.name, book.origin)
+            for (index in startIndex..processEndIndex) {
+                ensureActive()
+                if (book.bookUrl != ReadBook.book?.bookUrl) return@async
+                val chapter = appDb.bookChapterDao.getChapter(book.bookUrl, index) ?: continue
+                if (!BookHelp.hasContent(book, chapter)) continue
+                val content = BookHelp.getContent(book, chapter) ?: continue
+                //处理后的正文进入ContentProcessor缓存
+                val contents = contentProcessor
+                    .getContent(book, chapter, content, includeTitle = false)
+                if (index > layoutEndIndex) continue
+                val layoutVersion = ChapterProvider.layoutVersion
+                if (preparedChapters[index]?.isValid(layoutVersion, contents) == true) continue
+                val displayTitle = contentProcessor.getDisplayTitle(
+                    chapter,
+                    book.getUseReplaceRule()
+                )
+                val textChapter = ChapterProvider
+                    .getTextChapter(book, chapter, displayTitle, contents, chapterSize)
+                ensureActive()
+                preparedChapters[index] = PreparedChapter(layoutVersion, contents, textChapter)
+            }
+        }
+        task.onError {
+            if (it !is CancellationException) {
+                AppLog.put("预排版出错\n${it.localizedMessage}", it)
+            }
+            if (preLayoutTask === task) preLayoutIndex = -1
+        }.onCancel {
+            if (preLayoutTask === task) preLayoutIndex = -1
+        }
+        preLayoutTask = task
+    }
+
+    /**
+     * 取出预排版的章节,排版参数,正文处理结果,标题或章节数变化时返回null
+     */
+    private fun takePreparedChapter(
+        index: Int,
+        displayTitle: String,
+        contents: BookContent
+    ): TextChapter? {
+        val prepared = preparedChapters.remove(index) ?: return null
+        if (!prepared.isValid(ChapterProvider.layoutVersion, contents)) return null
+        val textChapter = prepared.textChapter
+        if (textChapter.title != displayTitle || textChapter.chaptersSize != chapterSize) {
+            return null
+        }
+        return textChapter
+    }
+
+    private fun clearPreparedChapters() {
+        preLayoutTask?.cancel()
+        preLayoutIndex = -1
+        preparedChapters.clear()
+    }
+
+    private class PreparedChapter(
+        val layoutVersion: Int,
+        val bookContent: BookContent,
+        val textChapter: TextChapter
+    ) {
+        /**
+         * [BookContent]来自ContentProcessor缓存,同一对象说明正文处理结果未变
+         */
+        fun isValid(layoutVersion: Int, bookContent: BookContent): Boolean {
+            return this.layoutVersion == layoutVersion && this.bookContent === bookContent
+        }
+    }
+
     interface CallBack {
         fun upMenuView()
 
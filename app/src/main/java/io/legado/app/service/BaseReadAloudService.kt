@@ -37,6 +37,7 @@ import splitties.init.appCtx
 import splitties.systemservices.audioManager
 import splitties.systemservices.notificationManager
 import splitties.systemservices.powerManager
+import kotlin.math.max
 
 /**
  * 朗读服务
@@ -170,16 +171,30 @@ abstract class BaseReadAloudService : BaseService(),
 
     private fun newReadAloud(play: Boolean, pageIndex: Int, startPos: Int) {
         execute(executeContext = IO) {
+            var textChapter = ReadBook.curTextChapter ?: return@execute
+            var pageIndex = pageIndex
+            var startPos = startPos
+            //排版完成前只有部分页,等整章排好再朗读,期间换了章节从新章节阅读位置开始
+            //排版出错或取消时ReadBook按已排好的页结束排版,等待随之结束
+            while (!textChapter.isCompleted) {
+                delay(100)
+                val curTextChapter = ReadBook.curTextChapter ?: return@execute
+                if (curTextChapter !== textChapter) {
+                    textChapter = curTextChapter
+                    pageIndex = ReadBook.durPageIndex
+                    startPos = 0
+                }
+            }
+            pageIndex = pageIndex.coerceIn(0, max(textChapter.lastIndex, 0))
+            val page = textChapter.getPage(pageIndex) ?: return@execute
             this@BaseReadAloudService.pageIndex = pageIndex
-            textChapter = ReadBook.curTextChapter
-            val textChapter = textChapter ?: return@execute
+            this@BaseReadAloudService.textChapter = textChapter
             readAloudNumber = textChapter.getReadLength(pageIndex) + startPos
             readAloudByPage = getPrefBoolean(PreferKey.readAloudByPage)
             contentList = textChapter.getNeedReadAloud(0, readAloudByPage, 0)
                 .split("\n")
                 .filter { it.isNotEmpty() }
             var pos = startPos
-            val page = textChapter.getPage(pageIndex)!!
             if (pos > 0) {
                 for (paragraph in page.paragraphs) {
                     val tmp = pos - paragraph.length - 1
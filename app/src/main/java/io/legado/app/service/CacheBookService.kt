@@ -60,8 +60,7 @@ class CacheBookService : BaseService() {
     override fun onCreate() {
         super.onCreate()
         isRun = true
-        CacheBook.successDownloadSet.clear()
-        CacheBook.errorDownloadMap.clear()
+        CacheBook.clearDownloadRecord()
         lifecycleScope.launch {
             while (isActive) {
                 delay(1000)
@@ -93,8 +92,7 @@ class CacheBookService : BaseService() {
         cachePool.close()
         CacheBook.cacheBookMap.forEach { it.value.stop() }
         CacheBook.cacheBookMap.clear()
-        CacheBook.successDownloadSet.clear()
-        CacheBook.errorDownloadMap.clear()
+        CacheBook.clearDownloadRecord()
         super.onDestroy()
         postEvent(EventBus.UP_DOWNLOAD, "")
     }
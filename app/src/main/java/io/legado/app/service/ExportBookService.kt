@@ -633,8 +633,8 @@ class ExportBookService : BaseService() {
                 val title = chapter.run {
                     // 不导出vip标识
                     isVip = false
-                    getDisplayTitle(
-                        contentProcessor.getTitleReplaceRules(),
+                    contentProcessor.getDisplayTitle(
+                        this,
                         useReplace = useReplace
                     )
                 }
@@ -850,8 +850,8 @@ class ExportBookService : BaseService() {
                     val title = chapter.run {
                         // 不导出vip标识
                         isVip = false
-                        getDisplayTitle(
-                            contentProcessor.getTitleReplaceRules(),
+                        contentProcessor.getDisplayTitle(
+                            this,
                             useReplace = useReplace
                         )
                     }
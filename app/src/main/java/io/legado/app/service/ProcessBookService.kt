@@ -0,0 +1,156 @@
+package io.legado.app.service
+
+import android.content.Intent
+import androidx.core.app.NotificationCompat
+import androidx.lifecycle.lifecycleScope
+import io.legado.app.R
+import io.legado.app.base.BaseService
+import io.legado.app.constant.AppConst
+import io.legado.app.constant.AppLog
+import io.legado.app.constant.IntentAction
+import io.legado.app.constant.NotificationId
+import io.legado.app.data.appDb
+import io.legado.app.data.entities.Book
+import io.legado.app.help.book.BookHelp
+import io.legado.app.help.book.ContentProcessor
+import io.legado.app.help.config.AppConfig
+import io.legado.app.utils.servicePendingIntent
+import io.legado.app.utils.toastOnUi
+import kotlinx.coroutines.Dispatchers.IO
+import kotlinx.coroutines.Dispatchers.Main
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.async
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import splitties.init.appCtx
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 预处理书籍服务,对已缓存章节执行替换/简繁转换/重新分段,结果写入磁盘缓存
+ * 之后阅读,朗读,搜索和导出直接读取处理结果
+ */
+class ProcessBookService : BaseService() {
+
+    private val processPool = ForkJoinPool(Runtime.getRuntime().availableProcessors())
+    private val processDispatcher = processPool.asCoroutineDispatcher()
+    private val waitBooks = ConcurrentLinkedQueue<String>()
+    private var processJob: Job? = null
+    private var lastStartId = 0
+    private var bookName = ""
+    private val total = AtomicInteger()
+    private val done = AtomicInteger()
+    private var notificationContent = appCtx.getString(R.string.service_starting)
+    private val notificationBuilder by lazy {
+        NotificationCompat.Builder(this, AppConst.channelIdDownload)
+            .setSmallIcon(R.drawable.ic_download)
+            .setOngoing(true)
+            .setContentTitle(getString(R.string.process_book))
+            .addAction(
+                R.drawable.ic_stop_black_24dp,
+                getString(R.string.cancel),
+                servicePendingIntent<ProcessBookService>(IntentAction.stop)
+            )
+            .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
+    }
+
+    override fun onCreate() {
+        super.onCreate()
+        lifecycleScope.launch {
+            while (isActive) {
+                delay(1000)
+                if (processJob?.isActive == true) {
+                    notificationContent = getString(
+                        R.string.process_book_progress, bookName, done.get(), total.get()
+                    )
+                    upNotification()
+                }
+            }
+        }
+    }
+
+    override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
+        lastStartId = startId
+        when (intent?.action) {
+            IntentAction.start -> intent.getStringExtra("bookUrl")?.let {
+                if (!waitBooks.contains(it)) waitBooks.add(it)
+                if (processJob?.isActive != true) {
+                    process()
+                }
+            }
+
+            IntentAction.stop -> stopSelf()
+        }
+        return super.onStartCommand(intent, flags, startId)
+    }
+
+    override fun onDestroy() {
+        processJob?.cancel()
+        processDispatcher.close()
+        super.onDestroy()
+    }
+
+    private fun process() {
+        processJob = lifecycleScope.launch(IO) {
+            while (isActive) {
+                val bookUrl = waitBooks.poll() ?: break
+                val book = appDb.bookDao.getBook(bookUrl) ?: continue
+                kotlin.runCatching {
+                    processBook(book)
+                }.onFailure {
+                    ensureActive()
+                    AppLog.put("预处理《${book.name}》出错\n${it.localizedMessage}", it)
+                }
+            }
+            //与onStartCommand同在主线程检查,处理期间加入的书籍不会丢失
+            withContext(Main) {
+                if (waitBooks.isEmpty()) {
+                    stopSelf(lastStartId)
+                } else {
+                    process()
+                }
+            }
+        }
+    }
+
+    /**
+     * 所有章节并行处理,线程数为CPU核数
+     */
+    private suspend fun processBook(book: Book) = coroutineScope {
+        bookName = book.name
+        val contentProcessor = ContentProcessor.get(book)
+        val chapters = appDb.bookChapterDao.getChapterList(book.bookUrl).filter {
+            BookHelp.hasContent(book, it)
+        }
+        total.set(chapters.size)
+        done.set(0)
+        //导出不做简繁转换和重新分段,启用替换时单独处理一份
+        val exportVariant = AppConfig.exportUseReplace && book.getUseReplaceRule()
+        chapters.map { chapter ->
+            async(processDispatcher) {
+                ensureActive()
+                contentProcessor.preProcess(book, chapter)
+                if (exportVariant) {
+                    contentProcessor.preProcess(
+                        book, chapter, chineseConvert = false, reSegment = false
+                    )
+                }
+                done.incrementAndGet()
+            }
+        }.awaitAll()
+        toastOnUi(getString(R.string.process_book_finish, book.name))
+    }
+
+    override fun upNotification() {
+        notificationBuilder.setContentText(notificationContent)
+        startForeground(NotificationId.ProcessBookService, notificationBuilder.build())
+    }
+
+}
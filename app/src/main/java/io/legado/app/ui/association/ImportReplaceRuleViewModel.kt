@@ -10,6 +10,7 @@ import io.legado.app.data.appDb
 import io.legado.app.data.entities.ReplaceRule
 import io.legado.app.exception.NoStackTraceException
 import io.legado.app.help.ReplaceAnalyzer
+import io.legado.app.help.book.ReplaceRuleIndex
 import io.legado.app.help.http.newCallResponseBody
 import io.legado.app.help.http.okHttpClient
 import io.legado.app.help.http.text
@@ -72,6 +73,7 @@ class ImportReplaceRuleViewModel(app: Application) : BaseViewModel(app) {
                 }
             }
             appDb.replaceRuleDao.insert(*selectRules.toTypedArray())
+            ReplaceRuleIndex.update(*selectRules.toTypedArray())
         }.onFinally {
             finally.invoke()
         }
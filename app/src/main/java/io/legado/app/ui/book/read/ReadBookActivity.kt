@@ -888,7 +888,7 @@ class ReadBookActivity : BaseReadBookActivity(),
      */
     private fun upSeekBarProgress() {
         val progress = when (AppConfig.progressBarBehavior) {
-            "page" -> ReadBook.durPageIndex
+            "page" -> ReadBook.durPageProgress
             else /* chapter */ -> ReadBook.durChapterIndex
         }
         binding.readMenu.setSeekPage(progress)
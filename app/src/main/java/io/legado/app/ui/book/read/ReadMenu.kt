@@ -508,8 +508,8 @@ class ReadMenu @JvmOverloads constructor(
             when (AppConfig.progressBarBehavior) {
                 "page" -> {
                     ReadBook.curTextChapter?.let {
-                        max = it.pageSize.minus(1)
-                        progress = ReadBook.durPageIndex
+                        max = it.estimatedPageSize.minus(1)
+                        progress = ReadBook.durPageProgress
                     }
                 }
 
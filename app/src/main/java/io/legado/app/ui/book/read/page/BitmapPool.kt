@@ -0,0 +1,66 @@
+package io.legado.app.ui.book.read.page
+
+import android.graphics.Bitmap
+import android.graphics.Color
+
+/**
+ * 页面截图位图池,翻页动画,自动翻页和切换动画时复用同尺寸位图,不再反复创建和回收
+ * 只保存全屏大小的可变位图,尺寸变化后旧尺寸的位图直接回收
+ */
+object BitmapPool {
+
+    private const val MAX_SIZE = 4
+
+    private val pool = ArrayList<Bitmap>(MAX_SIZE)
+
+    /**
+     * 取出指定尺寸的位图,内容已清空
+     */
+    @Synchronized
+    fun obtain(width: Int, height: Int): Bitmap {
+        var bitmap: Bitmap? = null
+        val iterator = pool.iterator()
+        while (iterator.hasNext()) {
+            val item = iterator.next()
+            if (item.isRecycled) {
+                iterator.remove()
+            } else if (item.width != width || item.height != height) {
+                //尺寸已经变了,不会再用到
+                iterator.remove()
+                item.recycle()
+            } else if (bitmap == null) {
+                iterator.remove()
+                bitmap = item
+            }
+        }
+        bitmap?.let {
+            it.eraseColor(Color.TRANSPARENT)
+            return it
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+    }
+
+    /**
+     * 归还位图,调用后不能再使用
+     */
+    @Synchronized
+    fun release(bitmap: Bitmap?) {
+        if (bitmap == null || bitmap.isRecycled) return
+        if (pool.contains(bitmap)) return
+        if (!bitmap.isMutable || bitmap.config != Bitmap.Config.ARGB_8888) {
+            bitmap.recycle()
+            return
+        }
+        if (pool.size >= MAX_SIZE) {
+            pool.removeAt(0).recycle()
+        }
+        pool.add(bitmap)
+    }
+
+    @Synchronized
+    fun clear() {
+        pool.forEach { it.recycle() }
+        pool.clear()
+    }
+
+}
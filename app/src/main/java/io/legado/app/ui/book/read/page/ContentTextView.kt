@@ -5,6 +5,7 @@ import android.graphics.Canvas
 import android.graphics.Paint
 import android.graphics.Rect
 import android.graphics.RectF
+import android.graphics.Region
 import android.os.Build
 import android.util.AttributeSet
 import android.view.MotionEvent
@@ -27,6 +28,7 @@ import io.legado.app.ui.book.read.page.provider.ChapterProvider
 import io.legado.app.ui.book.read.page.provider.TextPageFactory
 import io.legado.app.ui.widget.dialog.PhotoDialog
 import io.legado.app.utils.*
+import kotlin.math.max
 import kotlin.math.min
 
 /**
@@ -45,6 +47,7 @@ class ContentTextView(context: Context, attrs: AttributeSet?) : View(context, at
     private val visibleRect = RectF()
     val selectStart = TextPos(0, 0, 0)
     private val selectEnd = TextPos(0, 0, 0)
+    private var hasSelection = false
     var textPage: TextPage = TextPage()
         private set
     var isMainView = false
@@ -111,6 +114,7 @@ class ContentTextView(context: Context, attrs: AttributeSet?) : View(context, at
         }
         canvas.clipRect(visibleRect)
         drawPage(canvas)
+        drawSelection(canvas)
         drawVisibleImageOnly = false
         cacheIncreased = false
     }
@@ -120,27 +124,110 @@ class ContentTextView(context: Context, attrs: AttributeSet?) : View(context, at
      */
     private fun drawPage(canvas: Canvas) {
         var relativeOffset = relativeOffset(0)
-        textPage.lines.forEach { textLine ->
-            drawLine(canvas, textPage, textLine, relativeOffset)
-        }
+        drawPageLines(canvas, textPage, relativeOffset)
         if (!callBack.isScroll) return
         //滚动翻页
         if (!pageFactory.hasNext()) return
         val textPage1 = relativePage(1)
         relativeOffset = relativeOffset(1)
-        textPage1.lines.forEach { textLine ->
-            drawLine(canvas, textPage1, textLine, relativeOffset)
-        }
+        drawPageLines(canvas, textPage1, relativeOffset)
         if (!pageFactory.hasNextPlus()) return
         relativeOffset = relativeOffset(2)
         if (relativeOffset < ChapterProvider.visibleHeight) {
             val textPage2 = relativePage(2)
-            textPage2.lines.forEach { textLine ->
-                drawLine(canvas, textPage2, textLine, relativeOffset)
+            drawPageLines(canvas, textPage2, relativeOffset)
+        }
+    }
+
+    /**
+     * 选中背景画在页面内容上层,移动选择符不用重新录制页面,只处理选中区间内的行
+     */
+    private fun drawSelection(canvas: Canvas) {
+        if (!hasSelection) return
+        val last = if (callBack.isScroll) 2 else 0
+        val firstPage = max(selectStart.relativePagePos, 0)
+        val lastPage = min(selectEnd.relativePagePos, last)
+        val textPos = TextPos(0, 0, 0)
+        for (relativePos in firstPage..lastPage) {
+            textPos.relativePagePos = relativePos
+            val textPage = relativePage(relativePos)
+            val relativeOffset = relativeOffset(relativePos)
+            val firstLine = if (relativePos == selectStart.relativePagePos) {
+                selectStart.lineIndex
+            } else 0
+            val lastLine = if (relativePos == selectEnd.relativePagePos) {
+                min(selectEnd.lineIndex, textPage.lineSize - 1)
+            } else textPage.lineSize - 1
+            for (lineIndex in firstLine..lastLine) {
+                textPos.lineIndex = lineIndex
+                val textLine = textPage.getLine(lineIndex)
+                val lineTop = textLine.lineTop + relativeOffset
+                val lineBottom = textLine.lineBottom + relativeOffset
+                for (charIndex in 0 until textLine.charSize) {
+                    if (!textLine.isTextColumn(charIndex)) continue
+                    textPos.columnIndex = charIndex
+                    if (!isSelected(textPos)) continue
+                    canvas.drawRect(
+                        textLine.getColumnStart(charIndex),
+                        lineTop,
+                        textLine.getColumnEnd(charIndex),
+                        lineBottom,
+                        selectedPaint
+                    )
+                }
             }
         }
     }
 
+    /**
+     * 没有图片的页面回放录制的绘制内容,硬件加速在6.0以下不支持绘制Picture
+     * 录制时不区分朗读行,回放时跳过朗读行再单独绘制,朗读位置变化不用重新录制
+     */
+    private fun drawPageLines(canvas: Canvas, textPage: TextPage, relativeOffset: Float) {
+        val picture = if (
+            width > 0 && height > 0 &&
+            (!canvas.isHardwareAccelerated || Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+        ) {
+            PagePictureCache.get(textPage, width, height, context.accentColor) { c ->
+                textPage.lines.forEach { textLine ->
+                    drawLine(c, textPage, textLine, 0f, false)
+                }
+            }
+        } else null
+        if (picture == null) {
+            textPage.lines.forEach { textLine ->
+                drawLine(canvas, textPage, textLine, relativeOffset)
+            }
+            return
+        }
+        //朗读在其他线程更新,只取一次
+        val aloudLines = textPage.aloudLines
+        canvas.save()
+        canvas.translate(0f, relativeOffset)
+        aloudLines.forEach {
+            textPage.lines.getOrNull(it)?.let { textLine ->
+                clipOutLine(canvas, textLine)
+            }
+        }
+        canvas.drawPicture(picture)
+        canvas.restore()
+        aloudLines.forEach {
+            textPage.lines.getOrNull(it)?.let { textLine ->
+                drawLine(canvas, textPage, textLine, relativeOffset, true)
+            }
+        }
+    }
+
+    @Suppress("DEPRECATION")
+    private fun clipOutLine(canvas: Canvas, textLine: TextLine) {
+        val right = width.toFloat()
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            canvas.clipOutRect(0f, textLine.lineTop, right, textLine.lineBottom)
+        } else {
+            canvas.clipRect(0f, textLine.lineTop, right, textLine.lineBottom, Region.Op.DIFFERENCE)
+        }
+    }
+
     /**
      * 绘制页面
      */
@@ -149,11 +236,13 @@ class ContentTextView(context: Context, attrs: AttributeSet?) : View(context, at
         textPage: TextPage,
         textLine: TextLine,
         relativeOffset: Float,
+        isReadAloud: Boolean = textLine.isReadAloud,
     ) {
         val lineTop = textLine.lineTop + relativeOffset
         val lineBase = textLine.lineBase + relativeOffset
         val lineBottom = textLine.lineBottom + relativeOffset
-        drawChars(canvas, textPage, textLine, lineTop, lineBase, lineBottom)
+        val textColor = if (isReadAloud) context.accentColor else ReadBookConfig.textColor
+        drawChars(canvas, textPage, textLine, lineTop, lineBase, lineBottom, textColor)
         if (ReadBookConfig.underline && ReadBook.book?.isImage != true) {
             drawUnderline(canvas, textLine, relativeOffset)
         }
@@ -183,29 +272,59 @@ class ContentTextView(context: Context, attrs: AttributeSet?) : View(context, at
         lineTop: Float,
         lineBase: Float,
         lineBottom: Float,
+        textColor: Int,
     ) {
         val textPaint = if (textLine.isTitle) {
             ChapterProvider.titlePaint
         } else {
             ChapterProvider.contentPaint
         }
-        val textColor = if (textLine.isReadAloud) context.accentColor else ReadBookConfig.textColor
-        textLine.columns.forEach {
-            when (it) {
-                is TextColumn -> {
-                    textPaint.color = textColor
-                    if (it.isSearchResult) {
-                        textPaint.color = context.accentColor
-                    }
-                    canvas.drawText(it.charData, it.start, lineBase, textPaint)
-                    if (it.selected) {
-                        canvas.drawRect(it.start, lineTop, it.end, lineBottom, selectedPaint)
-                    }
+        val columnChars = textLine.columnChars
+        val charSize = textLine.charSize
+        var index = 0
+        while (index < charSize) {
+            if (!textLine.isTextColumn(index)) {
+                when (val column = textLine.getOtherColumn(index)) {
+                    is ImageColumn -> drawImage(canvas, textPage, textLine, column, lineTop, lineBottom)
+                    is ReviewColumn -> column.drawToCanvas(canvas, lineBase, textPaint.textSize)
                 }
-
-                is ImageColumn -> drawImage(canvas, textPage, textLine, it, lineTop, lineBottom)
-                is ReviewColumn -> it.drawToCanvas(canvas, lineBase, textPaint.textSize)
+                index++
+                continue
             }
+            if (textLine.isColumnSearchResult(index)) {
+                textPaint.color = context.accentColor
+                canvas.drawText(
+                    columnChars,
+                    textLine.getColumnCharStart(index),
+                    textLine.getColumnCharEnd(index),
+                    textLine.getColumnStart(index),
+                    lineBase,
+                    textPaint
+                )
+                index++
+                continue
+            }
+            //自然排列的行连续文字整段绘制,两端对齐的行每列单独绘制
+            var end = index + 1
+            if (textLine.isNaturalColumns) {
+                while (end < charSize
+                    && textLine.isTextColumn(end)
+                    && !textLine.isColumnSearchResult(end)
+                    && textLine.getColumnCharStart(end) == textLine.getColumnCharEnd(end - 1)
+                ) {
+                    end++
+                }
+            }
+            textPaint.color = textColor
+            canvas.drawText(
+                columnChars,
+                textLine.getColumnCharStart(index),
+                textLine.getColumnCharEnd(end - 1),
+                textLine.getColumnStart(index),
+                lineBase,
+                textPaint
+            )
+            index = end
         }
     }
 
@@ -348,8 +467,6 @@ class ContentTextView(context: Context, attrs: AttributeSet?) : View(context, at
                 is ImageColumn -> callBack.onImageLongPress(x, y, column.src)
                 is TextColumn -> {
                     if (!selectAble) return@touch
-                    column.selected = true
-                    invalidate()
                     select(textPos)
                 }
             }
@@ -394,8 +511,6 @@ class ContentTextView(context: Context, attrs: AttributeSet?) : View(context, at
     ) {
         touchRough(x, y) { _, textPos, _, _, column ->
             if (column is TextColumn) {
-                column.selected = true
-                invalidate()
                 select(textPos)
             }
         }
@@ -486,12 +601,12 @@ class ContentTextView(context: Context, attrs: AttributeSet?) : View(context, at
             val textPage = relativePage(relativePos)
             for ((lineIndex, textLine) in textPage.lines.withIndex()) {
                 if (textLine.isTouch(x, y, relativeOffset)) {
-                    for ((charIndex, textColumn) in textLine.columns.withIndex()) {
-                        if (textColumn.isTouch(x)) {
+                    for (charIndex in 0 until textLine.charSize) {
+                        if (textLine.isColumnTouch(charIndex, x)) {
                             touched.invoke(
                                 relativeOffset,
                                 TextPos(relativePos, lineIndex, charIndex),
-                                textPage, textLine, textColumn
+                                textPage, textLine, textLine.getColumn(charIndex)
                             )
                             return
                         }
@@ -529,26 +644,22 @@ class ContentTextView(context: Context, attrs: AttributeSet?) : View(context, at
             val textPage = relativePage(relativePos)
             for ((lineIndex, textLine) in textPage.lines.withIndex()) {
                 if (textLine.isTouchY(y, relativeOffset)) {
-                    for ((charIndex, textColumn) in textLine.columns.withIndex()) {
-                        if (textColumn.isTouch(x)) {
+                    for (charIndex in 0 until textLine.charSize) {
+                        if (textLine.isColumnTouch(charIndex, x)) {
                             touched.invoke(
                                 relativeOffset,
                                 TextPos(relativePos, lineIndex, charIndex),
-                                textPage, textLine, textColumn
+                                textPage, textLine, textLine.getColumn(charIndex)
                             )
                             return
                         }
                     }
                     val isLast = textLine.columns.first().start < x
-                    val (charIndex, textColumn) = if (isLast) {
-                        textLine.columns.withIndex().last()
-                    } else {
-                        textLine.columns.withIndex().first()
-                    }
+                    val charIndex = if (isLast) textLine.charSize - 1 else 0
                     touched.invoke(
                         relativeOffset,
                         TextPos(relativePos, lineIndex, charIndex, false, isLast),
-                        textPage, textLine, textColumn
+                        textPage, textLine, textLine.getColumn(charIndex)
                     )
                     return
                 }
@@ -657,7 +768,18 @@ class ContentTextView(context: Context, attrs: AttributeSet?) : View(context, at
         selectEndMoveIndex(relativePagePos, lineIndex, columnIndex, isTouch, isLast)
     }
 
+    /**
+     * 选中区间只记录起止位置,由[drawSelection]绘制,只有搜索结果需要标记到文字列
+     */
     private fun upSelectChars() {
+        hasSelection = true
+        if (callBack.isSelectingSearchResult) {
+            upSearchResultChars()
+        }
+        invalidate()
+    }
+
+    private fun upSearchResultChars() {
         val last = if (callBack.isScroll) 2 else 0
         val textPos = TextPos(0, 0, 0)
         for (relativePos in 0..last) {
@@ -665,27 +787,29 @@ class ContentTextView(context: Context, attrs: AttributeSet?) : View(context, at
             val textPage = relativePage(relativePos)
             for ((lineIndex, textLine) in textPage.lines.withIndex()) {
                 textPos.lineIndex = lineIndex
-                for ((charIndex, column) in textLine.columns.withIndex()) {
+                for (charIndex in 0 until textLine.charSize) {
                     textPos.columnIndex = charIndex
-                    if (column is TextColumn) {
-                        val compareStart = textPos.compare(selectStart)
-                        val compareEnd = textPos.compare(selectEnd)
-                        column.selected = when {
-                            compareStart == 0 -> selectStart.isTouch
-                            compareEnd == 0 -> selectEnd.isTouch || selectEnd.isLast
-                            compareStart > 0 && compareEnd < 0 -> true
-                            else -> false
-                        }
-                        column.isSearchResult =
-                            column.selected && callBack.isSelectingSearchResult
-                        if (column.isSearchResult) {
-                            textPage.searchResult.add(column)
+                    if (textLine.isTextColumn(charIndex)) {
+                        val isSearchResult = isSelected(textPos)
+                        textLine.setColumnSearchResult(charIndex, isSearchResult)
+                        if (isSearchResult) {
+                            textPage.searchResult.add(textLine.getColumn(charIndex) as TextColumn)
                         }
                     }
                 }
             }
         }
-        invalidate()
+    }
+
+    private fun isSelected(textPos: TextPos): Boolean {
+        val compareStart = textPos.compare(selectStart)
+        val compareEnd = textPos.compare(selectEnd)
+        return when {
+            compareStart == 0 -> selectStart.isTouch
+            compareEnd == 0 -> selectEnd.isTouch || selectEnd.isLast
+            compareStart > 0 && compareEnd < 0 -> true
+            else -> false
+        }
     }
 
     private fun upSelectedStart(x: Float, y: Float, top: Float) {
@@ -706,19 +830,19 @@ class ContentTextView(context: Context, attrs: AttributeSet?) : View(context, at
     }
 
     fun cancelSelect(clearSearchResult: Boolean = false) {
-        val last = if (callBack.isScroll) 2 else 0
-        for (relativePos in 0..last) {
-            val textPage = relativePage(relativePos)
-            textPage.lines.forEach { textLine ->
-                textLine.columns.forEach {
-                    if (it is TextColumn) {
-                        it.selected = false
-                        if (clearSearchResult) {
-                            it.isSearchResult = false
-                            textPage.searchResult.remove(it)
+        hasSelection = false
+        if (clearSearchResult) {
+            val last = if (callBack.isScroll) 2 else 0
+            for (relativePos in 0..last) {
+                val textPage = relativePage(relativePos)
+                textPage.lines.forEach { textLine ->
+                    for (charIndex in 0 until textLine.charSize) {
+                        if (textLine.isTextColumn(charIndex)) {
+                            textLine.setColumnSearchResult(charIndex, false)
                         }
                     }
                 }
+                textPage.searchResult.clear()
             }
         }
         invalidate()
@@ -733,15 +857,15 @@ class ContentTextView(context: Context, attrs: AttributeSet?) : View(context, at
             textPos.relativePagePos = relativePos
             textPage.lines.forEachIndexed { lineIndex, textLine ->
                 textPos.lineIndex = lineIndex
-                textLine.columns.forEachIndexed { charIndex, column ->
+                for (charIndex in 0 until textLine.charSize) {
                     textPos.columnIndex = charIndex
                     val compareStart = textPos.compare(selectStart)
                     val compareEnd = textPos.compare(selectEnd)
-                    if (column is TextColumn) {
+                    if (textLine.isTextColumn(charIndex)) {
                         when {
                             compareStart == 0 -> {
                                 if (selectStart.isTouch) {
-                                    builder.append(column.charData)
+                                    textLine.appendColumnChars(charIndex, builder)
                                 }
                                 if (
                                     textLine.isParagraphEnd
@@ -753,11 +877,11 @@ class ContentTextView(context: Context, attrs: AttributeSet?) : View(context, at
                             }
 
                             compareEnd == 0 -> if (selectEnd.isTouch || selectEnd.isLast) {
-                                builder.append(column.charData)
+                                textLine.appendColumnChars(charIndex, builder)
                             }
 
                             compareStart > 0 && compareEnd < 0 -> {
-                                builder.append(column.charData)
+                                textLine.appendColumnChars(charIndex, builder)
                                 if (
                                     textLine.isParagraphEnd
                                     && charIndex == textLine.charSize - 1
@@ -0,0 +1,85 @@
+package io.legado.app.ui.book.read.page
+
+import android.graphics.Canvas
+import android.graphics.Picture
+import io.legado.app.help.config.ReadBookConfig
+import io.legado.app.ui.book.read.page.entities.TextPage
+import io.legado.app.ui.book.read.page.entities.column.ImageColumn
+import io.legado.app.ui.book.read.page.provider.ChapterProvider
+
+/**
+ * 页面绘制录制缓存,只在主线程使用
+ * 没有图片的页面录制一次,之后的绘制,截图和滚动直接回放
+ * 排版版本,颜色,下划线,搜索结果变化后重新录制,选中背景和朗读行在回放后单独绘制
+ */
+object PagePictureCache {
+
+    private const val MAX_SIZE = 8
+
+    private class Record(
+        val page: TextPage,
+        val key: Long,
+        /* null表示页面有图片,不录制 */
+        val picture: Picture?
+    )
+
+    private val records = ArrayList<Record>(MAX_SIZE)
+
+    /**
+     * @param colorKey 调用方使用的其他颜色
+     * @param draw 在页面坐标下绘制页面
+     * @return 页面不能录制时返回null
+     */
+    fun get(
+        page: TextPage,
+        width: Int,
+        height: Int,
+        colorKey: Int,
+        draw: (Canvas) -> Unit
+    ): Picture? {
+        val index = records.indexOfFirst { it.page === page }
+        var record = if (index >= 0) records.removeAt(index) else null
+        if (record == null && !isRecordable(page)) {
+            record = Record(page, 0, null)
+        } else if (record == null || record.picture != null) {
+            val key = getKey(page, colorKey)
+            if (record == null || record.key != key) {
+                val picture = Picture()
+                draw(picture.beginRecording(width, height))
+                picture.endRecording()
+                record = Record(page, key, picture)
+            }
+        }
+        records.add(record)
+        if (records.size > MAX_SIZE) {
+            records.removeAt(0)
+        }
+        return record.picture
+    }
+
+    fun clear() {
+        records.clear()
+    }
+
+    private fun isRecordable(page: TextPage): Boolean {
+        page.lines.forEach { line ->
+            if (line.isImage) return false
+            for (i in 0 until line.charSize) {
+                if (line.getOtherColumn(i) is ImageColumn) return false
+            }
+        }
+        return true
+    }
+
+    private fun getKey(page: TextPage, colorKey: Int): Long {
+        var key = ChapterProvider.layoutVersion.toLong()
+        key = key * 31 + ReadBookConfig.textColor
+        key = key * 31 + colorKey
+        key = key * 31 + if (ReadBookConfig.underline) 1 else 0
+        page.lines.forEach {
+            key = key * 31 + it.drawVersion
+        }
+        return key
+    }
+
+}
@@ -2,8 +2,13 @@ package io.legado.app.ui.book.read.page
 
 import android.annotation.SuppressLint
 import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.Canvas
 import android.graphics.Color
+import android.graphics.Rect
 import android.view.LayoutInflater
+import android.view.View
+import android.view.ViewParent
 import android.widget.FrameLayout
 import androidx.core.view.isGone
 import androidx.core.view.isInvisible
@@ -43,6 +48,12 @@ class PageView(context: Context) : FrameLayout(context) {
     private var tvTimeBattery: BatteryView? = null
     private var tvTimeBatteryP: BatteryView? = null
 
+    //内容版本,子视图刷新或内容变化时增加,未变化时截图直接复用
+    private var contentVersion = 0
+    private var screenshotVersion = -1
+    private var screenshotGenerationId = 0
+    private var screenshotBitmap: Bitmap? = null
+
     val headerHeight: Int
         get() {
             val h1 = if (ReadBookConfig.hideStatusBar) 0 else context.statusBarHeight
@@ -64,6 +75,52 @@ class PageView(context: Context) : FrameLayout(context) {
         upBg()
     }
 
+    override fun onDescendantInvalidated(child: View, target: View) {
+        contentVersion++
+        super.onDescendantInvalidated(child, target)
+    }
+
+    @Suppress("OVERRIDE_DEPRECATION", "DEPRECATION")
+    override fun invalidateChildInParent(location: IntArray?, dirty: Rect?): ViewParent? {
+        contentVersion++
+        return super.invalidateChildInParent(location, dirty)
+    }
+
+    /**
+     * 截图,内容未变化且位图没有被改写时直接返回
+     * 尺寸不对的位图归还[BitmapPool],从池中取新的
+     */
+    fun screenshot(bitmap: Bitmap?, canvas: Canvas): Bitmap? {
+        if (width <= 0 || height <= 0) return null
+        val sizeMatch = bitmap != null && !bitmap.isRecycled
+                && bitmap.width == width && bitmap.height == height
+        if (sizeMatch && bitmap === screenshotBitmap
+            && screenshotVersion == contentVersion
+            && screenshotGenerationId == bitmap!!.generationId
+        ) {
+            return bitmap
+        }
+        val screenshot = if (sizeMatch) {
+            bitmap!!.eraseColor(Color.TRANSPARENT)
+            bitmap
+        } else {
+            BitmapPool.release(bitmap)
+            BitmapPool.obtain(width, height)
+        }
+        val version = contentVersion
+        canvas.setBitmap(screenshot)
+        canvas.save()
+        canvas.translate(-scrollX.toFloat(), -scrollY.toFloat())
+        draw(canvas)
+        canvas.restore()
+        canvas.setBitmap(null)
+        screenshot.prepareToDraw()
+        screenshotBitmap = screenshot
+        screenshotVersion = version
+        screenshotGenerationId = screenshot.generationId
+        return screenshot
+    }
+
     fun upStyle() = binding.run {
         upTipStyle()
         ReadBookConfig.let {
@@ -110,6 +167,7 @@ class PageView(context: Context) : FrameLayout(context) {
      * 显示状态栏时隐藏header
      */
     fun upStatusBar() = with(binding.vwStatusBar) {
+        contentVersion++
         setPadding(paddingLeft, context.statusBarHeight, paddingRight, paddingBottom)
         isGone = ReadBookConfig.hideStatusBar || readBookActivity?.isInMultiWindow == true
     }
@@ -237,6 +295,7 @@ class PageView(context: Context) : FrameLayout(context) {
      * 更新背景透明度
      */
     fun upBgAlpha() {
+        contentVersion++
         binding.vwBg.alpha = ReadBookConfig.bgAlpha / 100f
     }
 
@@ -264,6 +323,7 @@ class PageView(context: Context) : FrameLayout(context) {
      */
     @SuppressLint("SetTextI18n")
     private fun upTimeBattery() {
+        contentVersion++
         val time = timeFormat.format(Date(System.currentTimeMillis()))
         tvTimeBattery?.setBattery(battery, time)
         tvTimeBatteryP?.text = "$time $battery%"
@@ -299,6 +359,7 @@ class PageView(context: Context) : FrameLayout(context) {
      */
     @SuppressLint("SetTextI18n")
     fun setProgress(textPage: TextPage) = textPage.apply {
+        contentVersion++
         tvBookName?.text = ReadBook.book?.name
         tvTitle?.text = textPage.title
         tvPage?.text = "${index.plus(1)}/$pageSize"
@@ -2,6 +2,7 @@ package io.legado.app.ui.book.read.page
 
 import android.annotation.SuppressLint
 import android.content.Context
+import android.graphics.Bitmap
 import android.graphics.Canvas
 import android.graphics.Paint
 import android.graphics.Rect
@@ -95,6 +96,8 @@ class ReadView(context: Context, attrs: AttributeSet) :
     private val bcRect = RectF()
     private val brRect = RectF()
     private val autoPageRect by lazy { Rect() }
+    private val autoPageCanvas by lazy { Canvas() }
+    private var autoPageBitmap: Bitmap? = null
     private val autoPagePint by lazy { Paint().apply { color = context.accentColor } }
     private val boundary by lazy { BreakIterator.getWordInstance(Locale.getDefault()) }
 
@@ -141,7 +144,8 @@ class ReadView(context: Context, attrs: AttributeSet) :
         pageDelegate?.onDraw(canvas)
         if (!isInEditMode && callBack.isAutoPage && !isScroll) {
             // 自动翻页
-            nextPage.screenshot()?.let {
+            autoPageBitmap = nextPage.screenshot(autoPageBitmap, autoPageCanvas)
+            autoPageBitmap?.let {
                 val bottom = callBack.autoPageProgress
                 autoPageRect.set(0, 0, width, bottom)
                 canvas.drawBitmap(it, autoPageRect, autoPageRect, null)
@@ -152,8 +156,10 @@ class ReadView(context: Context, attrs: AttributeSet) :
                     bottom.toFloat(),
                     autoPagePint
                 )
-                it.recycle()
             }
+        } else if (autoPageBitmap != null) {
+            BitmapPool.release(autoPageBitmap)
+            autoPageBitmap = null
         }
     }
 
@@ -466,6 +472,10 @@ class ReadView(context: Context, attrs: AttributeSet) :
     fun onDestroy() {
         pageDelegate?.onDestroy()
         curPage.cancelSelect()
+        BitmapPool.release(autoPageBitmap)
+        autoPageBitmap = null
+        BitmapPool.clear()
+        PagePictureCache.clear()
     }
 
     /**
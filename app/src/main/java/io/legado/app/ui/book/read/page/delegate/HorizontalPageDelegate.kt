@@ -3,9 +3,9 @@ package io.legado.app.ui.book.read.page.delegate
 import android.graphics.Bitmap
 import android.graphics.Canvas
 import android.view.MotionEvent
+import io.legado.app.ui.book.read.page.BitmapPool
 import io.legado.app.ui.book.read.page.ReadView
 import io.legado.app.ui.book.read.page.entities.PageDirection
-import io.legado.app.utils.screenshot
 
 abstract class HorizontalPageDelegate(readView: ReadView) : PageDelegate(readView) {
 
@@ -140,11 +140,12 @@ abstract class HorizontalPageDelegate(readView: ReadView) : PageDelegate(readVie
 
     override fun onDestroy() {
         super.onDestroy()
-        prevBitmap?.recycle()
+        //切换翻页动画时新的动画直接复用
+        BitmapPool.release(prevBitmap)
         prevBitmap = null
-        curBitmap?.recycle()
+        BitmapPool.release(curBitmap)
         curBitmap = null
-        nextBitmap?.recycle()
+        BitmapPool.release(nextBitmap)
         nextBitmap = null
     }
 
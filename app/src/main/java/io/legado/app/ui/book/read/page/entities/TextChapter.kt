@@ -4,10 +4,13 @@ package io.legado.app.ui.book.read.page.entities
 import androidx.annotation.Keep
 import io.legado.app.data.entities.BookChapter
 import io.legado.app.data.entities.ReplaceRule
+import java.util.concurrent.CopyOnWriteArrayList
+import kotlin.math.max
 import kotlin.math.min
 
 /**
  * 章节信息
+ * 排版时逐页添加,[isCompleted]之前只有已排好的页
  */
 @Keep
 @Suppress("unused")
@@ -15,7 +18,6 @@ data class TextChapter(
     val chapter: BookChapter,
     val position: Int,
     val title: String,
-    val pages: List<TextPage>,
     val chaptersSize: Int,
     val sameTitleRemoved: Boolean,
     val isVip: Boolean,
@@ -24,6 +26,49 @@ data class TextChapter(
     val effectiveReplaceRules: List<ReplaceRule>?
 ) {
 
+    private val textPages = CopyOnWriteArrayList<TextPage>()
+
+    val pages: List<TextPage> get() = textPages
+
+    /**
+     * 是否排版完成
+     */
+    @Volatile
+    var isCompleted = false
+        private set
+
+    /**
+     * 排版未完成时按已排部分估算的总页数,排版过程中不断修正
+     */
+    @Volatile
+    var estimatedPageSize = 0
+        get() = if (isCompleted) pageSize else max(field, pageSize)
+
+    /**
+     * 添加排好的页
+     */
+    fun addPage(page: TextPage) {
+        textPages.add(page)
+    }
+
+    /**
+     * 排版完成,更新总页数
+     */
+    fun completed() {
+        val pageSize = textPages.size
+        textPages.forEach {
+            it.pageSize = pageSize
+        }
+        isCompleted = true
+    }
+
+    /**
+     * 阅读位置所在页是否已排好
+     */
+    fun isLaidOut(readPos: Int): Boolean {
+        return isCompleted || getReadLength(pageSize) > readPos
+    }
+
     fun getPage(index: Int): TextPage? {
         return pages.getOrNull(index)
     }
@@ -40,13 +85,19 @@ data class TextChapter(
 
     val pageSize: Int get() = pages.size
 
-    val paragraphs by lazy {
-        paragraphsInternal
-    }
+    //排版完成后才缓存
+    private var paragraphsCache: ArrayList<TextParagraph>? = null
+    private var pageParagraphsCache: List<TextParagraph>? = null
 
-    val pageParagraphs by lazy {
-        pageParagraphsInternal
-    }
+    val paragraphs: ArrayList<TextParagraph>
+        get() = paragraphsCache ?: paragraphsInternal.also {
+            if (isCompleted) paragraphsCache = it
+        }
+
+    val pageParagraphs: List<TextParagraph>
+        get() = pageParagraphsCache ?: pageParagraphsInternal.also {
+            if (isCompleted) pageParagraphsCache = it
+        }
 
     val paragraphsInternal: ArrayList<TextParagraph>
         get() {
@@ -74,10 +125,10 @@ data class TextChapter(
 
     /**
      * @param index 页数
-     * @return 是否是最后一页
+     * @return 是否是最后一页,排版未完成时不是
      */
     fun isLastIndex(index: Int): Boolean {
-        return index >= pages.size - 1
+        return isCompleted && index >= pages.size - 1
     }
 
     /**
@@ -93,6 +144,33 @@ data class TextChapter(
         return length
     }
 
+    /**
+     * 跳转到还没排好的页时按已排页的平均字数估算位置
+     * @param pageIndex 页数
+     * @return 已读长度
+     */
+    fun getEstimatedReadLength(pageIndex: Int): Int {
+        val pageSize = pageSize
+        if (isCompleted || pageIndex <= pageSize || pageSize == 0) {
+            return getReadLength(pageIndex)
+        }
+        val length = getReadLength(pageSize)
+        return length + (pageIndex - pageSize) * (length / pageSize)
+    }
+
+    /**
+     * 进度条用的页数,位置还没排好时按估算页数
+     */
+    fun getEstimatedPageIndex(readPos: Int): Int {
+        val pageSize = pageSize
+        val length = getReadLength(pageSize)
+        if (isCompleted || readPos < length || pageSize == 0) {
+            return getPageIndexByCharIndex(readPos)
+        }
+        val pageIndex = pageSize + (readPos - length) / max(1, length / pageSize)
+        return min(pageIndex, estimatedPageSize - 1)
+    }
+
     /**
      * @param length 当前页面文字在章节中的位置
      * @return 下一页位置,如果没有下一页返回-1
@@ -182,16 +260,18 @@ data class TextChapter(
     }
 
     /**
-     * @return 根据索引位置获取所在页
+     * @return 根据索引位置获取所在页,排版未完成且位置还没排到时返回[pageSize],显示占位页
      */
     fun getPageIndexByCharIndex(charIndex: Int): Int {
         var length = 0
+        val pages = pages
         pages.forEach {
             length += it.charSize
             if (length > charIndex) {
                 return it.index
             }
         }
+        if (!isCompleted) return pages.size
         return pages.lastIndex
     }
 
@@ -3,6 +3,7 @@ package io.legado.app.ui.book.read.page.entities
 import android.graphics.Paint.FontMetrics
 import androidx.annotation.Keep
 import io.legado.app.ui.book.read.page.entities.column.BaseColumn
+import io.legado.app.ui.book.read.page.entities.column.LineColumns
 import io.legado.app.ui.book.read.page.provider.ChapterProvider
 
 /**
@@ -12,7 +13,7 @@ import io.legado.app.ui.book.read.page.provider.ChapterProvider
 @Suppress("unused", "MemberVisibilityCanBePrivate")
 data class TextLine(
     var text: String = "",
-    private val textColumns: ArrayList<BaseColumn> = arrayListOf(),
+    private val textColumns: LineColumns = LineColumns(),
     var lineTop: Float = 0f,
     var lineBase: Float = 0f,
     var lineBottom: Float = 0f,
@@ -26,28 +27,100 @@ data class TextLine(
     var isImage: Boolean = false
 ) {
 
-    val columns: List<BaseColumn> get() = textColumns
+    val columns: List<BaseColumn> get() = textColumns.list
     val charSize: Int get() = textColumns.size
-    val lineStart: Float get() = textColumns.firstOrNull()?.start ?: 0f
-    val lineEnd: Float get() = textColumns.lastOrNull()?.end ?: 0f
+    val lineStart: Float get() = if (charSize > 0) textColumns.getStart(0) else 0f
+    val lineEnd: Float get() = if (charSize > 0) textColumns.getEnd(charSize - 1) else 0f
     val chapterIndices: IntRange get() = chapterPosition..chapterPosition + charSize
 
+    /**
+     * 绘制状态版本,搜索结果变化时改变,选中和朗读在录制内容上层绘制,不影响
+     */
+    val drawVersion: Int get() = textColumns.version
+
+    /**
+     * 文字列的字符来源,排版时设置为本行文字
+     */
+    var columnChars: String
+        get() = textColumns.chars
+        set(value) {
+            textColumns.chars = value
+        }
+
+    /**
+     * 文字列按画笔的自然宽度紧密排列,没有两端对齐的间距和位移,可以整段绘制
+     */
+    var isNaturalColumns = false
+
     fun addColumn(column: BaseColumn) {
-        textColumns.add(column)
+        textColumns.addOther(column)
+    }
+
+    /**
+     * 添加文字列,文字为[columnChars]中[charStart]到[charEnd]
+     */
+    fun addTextColumn(start: Float, end: Float, charStart: Int, charEnd: Int) {
+        textColumns.addText(start, end, charStart, charEnd)
+    }
+
+    fun ensureColumnCapacity(capacity: Int) {
+        textColumns.ensureCapacity(capacity)
     }
 
     fun getColumn(index: Int): BaseColumn {
-        return textColumns.getOrElse(index) {
-            textColumns.last()
-        }
+        return textColumns.getColumn(if (index in 0 until charSize) index else charSize - 1)
     }
 
     fun getColumnReverseAt(index: Int): BaseColumn {
-        return textColumns[textColumns.lastIndex - index]
+        return textColumns.getColumn(charSize - 1 - index)
     }
 
     fun getColumnsCount(): Int {
-        return textColumns.size
+        return charSize
+    }
+
+    /* 以下按列序号访问,不创建列对象 */
+
+    fun isTextColumn(index: Int): Boolean = textColumns.isText(index)
+
+    /**
+     * 图片,评论等非文字列
+     */
+    fun getOtherColumn(index: Int): BaseColumn? = textColumns.getOther(index)
+
+    fun getColumnStart(index: Int): Float = textColumns.getStart(index)
+
+    fun getColumnEnd(index: Int): Float = textColumns.getEnd(index)
+
+    fun getColumnCharStart(index: Int): Int = textColumns.getCharStart(index)
+
+    fun getColumnCharEnd(index: Int): Int = textColumns.getCharEnd(index)
+
+    fun isColumnTouch(index: Int, x: Float): Boolean {
+        return x > textColumns.getStart(index) && x < textColumns.getEnd(index)
+    }
+
+    fun shiftColumn(index: Int, offset: Float) {
+        isNaturalColumns = false
+        textColumns.setStart(index, textColumns.getStart(index) + offset)
+        textColumns.setEnd(index, textColumns.getEnd(index) + offset)
+    }
+
+    fun isColumnSelected(index: Int): Boolean = textColumns.isSelected(index)
+
+    fun setColumnSelected(index: Int, selected: Boolean) {
+        textColumns.setSelected(index, selected)
+    }
+
+    fun isColumnSearchResult(index: Int): Boolean = textColumns.isSearchResult(index)
+
+    fun setColumnSearchResult(index: Int, searchResult: Boolean) {
+        textColumns.setSearchResult(index, searchResult)
+    }
+
+    fun appendColumnChars(index: Int, builder: StringBuilder) {
+        val chars = textColumns.chars
+        builder.append(chars, textColumns.getCharStart(index), textColumns.getCharEnd(index))
     }
 
     fun upTopBottom(durY: Float, textHeight: Float, fontMetrics: FontMetrics) {
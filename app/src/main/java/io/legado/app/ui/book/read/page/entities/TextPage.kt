@@ -35,6 +35,13 @@ data class TextPage(
     val searchResult = hashSetOf<TextColumn>()
     var isMsgPage: Boolean = false
 
+    /**
+     * 朗读中的行区间,更新朗读位置时只改动区间内的行
+     */
+    @Volatile
+    var aloudLines: IntRange = IntRange.EMPTY
+        private set
+
     val paragraphs by lazy {
         paragraphsInternal
     }
@@ -134,13 +141,14 @@ data class TextPage(
                         (visibleWidth - layout.getLineMax(lineIndex)) / 2
                 textLine.text =
                     text.substring(layout.getLineStart(lineIndex), layout.getLineEnd(lineIndex))
+                textLine.columnChars = textLine.text
+                textLine.ensureColumnCapacity(textLine.text.length)
                 for (i in textLine.text.indices) {
-                    val char = textLine.text[i].toString()
-                    val cw = StaticLayout.getDesiredWidth(char, ChapterProvider.contentPaint)
-                    val x1 = x + cw
-                    textLine.addColumn(
-                        TextColumn(start = x, end = x1, char)
+                    val cw = StaticLayout.getDesiredWidth(
+                        textLine.text, i, i + 1, ChapterProvider.contentPaint
                     )
+                    val x1 = x + cw
+                    textLine.addTextColumn(start = x, end = x1, charStart = i, charEnd = i + 1)
                     x = x1
                 }
                 textLines.add(textLine)
@@ -154,9 +162,7 @@ data class TextPage(
      * 移除朗读标志
      */
     fun removePageAloudSpan(): TextPage {
-        textLines.forEach { textLine ->
-            textLine.isReadAloud = false
-        }
+        setAloudLines(IntRange.EMPTY)
         return this
     }
 
@@ -165,30 +171,37 @@ data class TextPage(
      * @param aloudSpanStart 朗读文字开始位置
      */
     fun upPageAloudSpan(aloudSpanStart: Int) {
-        removePageAloudSpan()
         var lineStart = 0
         for ((index, textLine) in textLines.withIndex()) {
             val lineLength = textLine.text.length + if (textLine.isParagraphEnd) 1 else 0
             if (aloudSpanStart > lineStart && aloudSpanStart < lineStart + lineLength) {
-                for (i in index - 1 downTo 0) {
-                    if (textLines[i].isParagraphEnd) {
-                        break
-                    } else {
-                        textLines[i].isReadAloud = true
-                    }
+                //朗读段落的首行和末行
+                var first = index
+                while (first > 0 && !textLines[first - 1].isParagraphEnd) {
+                    first--
                 }
-                for (i in index until textLines.size) {
-                    if (textLines[i].isParagraphEnd) {
-                        textLines[i].isReadAloud = true
-                        break
-                    } else {
-                        textLines[i].isReadAloud = true
-                    }
+                var last = index
+                while (last < textLines.lastIndex && !textLines[last].isParagraphEnd) {
+                    last++
                 }
-                break
+                setAloudLines(first..last)
+                return
             }
             lineStart += lineLength
         }
+        setAloudLines(IntRange.EMPTY)
+    }
+
+    @Synchronized
+    private fun setAloudLines(lines: IntRange) {
+        if (aloudLines == lines) return
+        aloudLines.forEach {
+            textLines.getOrNull(it)?.isReadAloud = false
+        }
+        lines.forEach {
+            textLines[it].isReadAloud = true
+        }
+        aloudLines = lines
     }
 
     /**
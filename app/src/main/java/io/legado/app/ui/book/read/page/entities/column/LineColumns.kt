@@ -0,0 +1,153 @@
+package io.legado.app.ui.book.read.page.entities.column
+
+/**
+ * 一行的列数据,按列序号存放在基本类型数组中,不再每个字一个对象
+ * 文字列只记录在[chars]中的位置,图片/评论等其他列单独存放
+ */
+class LineColumns {
+
+    companion object {
+        private const val FLAG_SELECTED = 1
+        private const val FLAG_SEARCH_RESULT = 2
+        private const val FLAG_OTHER = 4
+        private const val DEFAULT_CAPACITY = 16
+    }
+
+    /**
+     * 文字列的字符来源,一行共用
+     */
+    var chars: String = ""
+
+    var size = 0
+        private set
+
+    /**
+     * 选中,搜索结果等绘制状态的版本,变化后页面需要重新绘制
+     */
+    var version = 0
+        private set
+
+    private var starts = FloatArray(0)
+    private var ends = FloatArray(0)
+    private var charStarts = IntArray(0)
+    private var charEnds = IntArray(0)
+    private var flags = ByteArray(0)
+
+    /* 非文字列,很少 */
+    private var others: HashMap<Int, BaseColumn>? = null
+
+    /**
+     * 兼容按对象访问,文字列每次访问创建视图对象,绘制等频繁调用的地方用序号访问
+     */
+    val list: List<BaseColumn>
+        get() = listView ?: object : AbstractList<BaseColumn>() {
+            override val size: Int get() = this@LineColumns.size
+            override fun get(index: Int): BaseColumn = getColumn(index)
+        }.also { listView = it }
+
+    private var listView: List<BaseColumn>? = null
+
+    /**
+     * 排版时按本行字数预留,避免扩容
+     */
+    fun ensureCapacity(capacity: Int) {
+        if (capacity <= starts.size) return
+        starts = starts.copyOf(capacity)
+        ends = ends.copyOf(capacity)
+        charStarts = charStarts.copyOf(capacity)
+        charEnds = charEnds.copyOf(capacity)
+        flags = flags.copyOf(capacity)
+    }
+
+    fun addText(start: Float, end: Float, charStart: Int, charEnd: Int) {
+        val index = nextIndex()
+        starts[index] = start
+        ends[index] = end
+        charStarts[index] = charStart
+        charEnds[index] = charEnd
+        flags[index] = 0
+    }
+
+    fun addOther(column: BaseColumn) {
+        val index = nextIndex()
+        starts[index] = column.start
+        ends[index] = column.end
+        flags[index] = FLAG_OTHER.toByte()
+        val others = others ?: HashMap<Int, BaseColumn>(4).also { others = it }
+        others[index] = column
+    }
+
+    private fun nextIndex(): Int {
+        if (size == starts.size) {
+            ensureCapacity(maxOf(DEFAULT_CAPACITY, size * 2))
+        }
+        return size++
+    }
+
+    fun getColumn(index: Int): BaseColumn {
+        if (index < 0 || index >= size) throw IndexOutOfBoundsException("$index, size: $size")
+        return getOther(index) ?: TextColumn(this, index)
+    }
+
+    fun isText(index: Int): Boolean {
+        return flags[index].toInt() and FLAG_OTHER == 0
+    }
+
+    fun getOther(index: Int): BaseColumn? {
+        if (isText(index)) return null
+        return others?.get(index)
+    }
+
+    fun getStart(index: Int): Float {
+        if (!isText(index)) others?.get(index)?.let { return it.start }
+        return starts[index]
+    }
+
+    fun getEnd(index: Int): Float {
+        if (!isText(index)) others?.get(index)?.let { return it.end }
+        return ends[index]
+    }
+
+    fun setStart(index: Int, value: Float) {
+        if (!isText(index)) others?.get(index)?.let { it.start = value }
+        starts[index] = value
+    }
+
+    fun setEnd(index: Int, value: Float) {
+        if (!isText(index)) others?.get(index)?.let { it.end = value }
+        ends[index] = value
+    }
+
+    fun getCharStart(index: Int): Int = charStarts[index]
+
+    fun getCharEnd(index: Int): Int = charEnds[index]
+
+    fun getCharData(index: Int): String {
+        return chars.substring(charStarts[index], charEnds[index])
+    }
+
+    fun isSelected(index: Int): Boolean {
+        return flags[index].toInt() and FLAG_SELECTED != 0
+    }
+
+    fun setSelected(index: Int, selected: Boolean) {
+        setFlag(index, FLAG_SELECTED, selected)
+    }
+
+    fun isSearchResult(index: Int): Boolean {
+        return flags[index].toInt() and FLAG_SEARCH_RESULT != 0
+    }
+
+    fun setSearchResult(index: Int, searchResult: Boolean) {
+        setFlag(index, FLAG_SEARCH_RESULT, searchResult)
+    }
+
+    private fun setFlag(index: Int, flag: Int, value: Boolean) {
+        val old = flags[index].toInt()
+        val newFlags = if (value) old or flag else old and flag.inv()
+        if (newFlags == old) return
+        flags[index] = newFlags.toByte()
+        version++
+    }
+
+}
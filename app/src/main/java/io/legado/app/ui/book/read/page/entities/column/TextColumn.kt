@@ -4,12 +4,38 @@ import androidx.annotation.Keep
 
 /**
  * 文字列
+ * 数据存放在[LineColumns]中,这里只是某一列的视图,需要时创建
  */
 @Keep
-data class TextColumn(
-    override var start: Float,
-    override var end: Float,
-    val charData: String,
-    var selected: Boolean = false,
-    var isSearchResult: Boolean = false
-) : BaseColumn
\ No newline at end of file
+class TextColumn(
+    private val columns: LineColumns,
+    val index: Int
+) : BaseColumn {
+
+    override var start: Float
+        get() = columns.getStart(index)
+        set(value) = columns.setStart(index, value)
+
+    override var end: Float
+        get() = columns.getEnd(index)
+        set(value) = columns.setEnd(index, value)
+
+    val charData: String get() = columns.getCharData(index)
+
+    var selected: Boolean
+        get() = columns.isSelected(index)
+        set(value) = columns.setSelected(index, value)
+
+    var isSearchResult: Boolean
+        get() = columns.isSearchResult(index)
+        set(value) = columns.setSearchResult(index, value)
+
+    override fun equals(other: Any?): Boolean {
+        return other is TextColumn && other.columns === columns && other.index == index
+    }
+
+    override fun hashCode(): Int {
+        return System.identityHashCode(columns) * 31 + index
+    }
+
+}
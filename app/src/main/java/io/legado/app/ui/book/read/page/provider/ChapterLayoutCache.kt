@@ -0,0 +1,241 @@
+package io.legado.app.ui.book.read.page.provider
+
+import io.legado.app.constant.AppLog
+import io.legado.app.data.entities.Book
+import io.legado.app.data.entities.BookChapter
+import io.legado.app.ui.book.read.page.entities.TextLine
+import io.legado.app.ui.book.read.page.entities.TextPage
+import io.legado.app.ui.book.read.page.entities.column.ReviewColumn
+import io.legado.app.utils.MD5Utils
+import splitties.init.appCtx
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 章节排版结果的磁盘缓存,正文和排版参数不变时分页结果不变,重新打开时不用再测量文字
+ * 第一行key包含排版参数指纹和正文校验,样式或尺寸变化后指纹改变,旧文件自动失效
+ * 只缓存纯文字章节,图片尺寸依赖下载结果不缓存
+ */
+object ChapterLayoutCache {
+
+    private const val VERSION = 2
+    /**
+     * 每字都存了坐标,一章可达数百K,按总大小限制
+     */
+    private const val MAX_CACHE_SIZE = 64L * 1024 * 1024
+    private const val COLUMN_TEXT = 0
+    private const val COLUMN_REVIEW = 1
+
+    private val cacheDir by lazy { File(appCtx.cacheDir, "chapterLayout") }
+
+    private val putCount = AtomicInteger()
+
+    /**
+     * 排版基准测试时关闭
+     */
+    @Volatile
+    var enabled = true
+
+    fun getKey(chapter: BookChapter, displayTitle: String, contents: List<String>): String {
+        val contentHash = MD5Utils.md5Encode16(
+            displayTitle + "\n" + contents.joinToString("\n")
+        )
+        return "${ChapterProvider.layoutFingerprint}:${chapter.isVolume}:$contentHash"
+    }
+
+    /**
+     * 读取排版结果,页面序号等章节信息由调用方设置
+     */
+    fun get(book: Book, chapter: BookChapter, key: String): ArrayList<TextPage>? {
+        if (!enabled) return null
+        val file = getFile(book, chapter)
+        if (!file.exists()) return null
+        return kotlin.runCatching {
+            DataInputStream(file.inputStream().buffered()).use {
+                if (it.readInt() != VERSION || it.readUTF() != key) {
+                    null
+                } else {
+                    readPages(it)
+                }
+            }?.also {
+                //按修改时间淘汰,读取时更新
+                file.setLastModified(System.currentTimeMillis())
+            }
+        }.onFailure {
+            AppLog.putDebug("读取排版缓存出错 ${chapter.title}", it)
+        }.getOrNull() ?: run {
+            file.delete()
+            null
+        }
+    }
+
+    fun put(book: Book, chapter: BookChapter, key: String, pages: List<TextPage>) {
+        if (!enabled || !isCacheable(pages)) return
+        val file = getFile(book, chapter)
+        kotlin.runCatching {
+            file.parentFile?.mkdirs()
+            val tmp = File(file.parentFile, "${file.name}.tmp")
+            DataOutputStream(tmp.outputStream().buffered()).use {
+                it.writeInt(VERSION)
+                it.writeUTF(key)
+                writePages(it, pages)
+            }
+            tmp.renameTo(file)
+        }.onFailure {
+            AppLog.putDebug("写入排版缓存出错 ${chapter.title}", it)
+        }
+        if (putCount.incrementAndGet() % 50 == 0) {
+            trim()
+        }
+    }
+
+    fun clear() {
+        cacheDir.deleteRecursively()
+    }
+
+    private fun getFile(book: Book, chapter: BookChapter): File {
+        return File(File(cacheDir, MD5Utils.md5Encode16(book.bookUrl)), "${chapter.index}.lay")
+    }
+
+    /**
+     * 总大小超过[MAX_CACHE_SIZE]时删除最久未用的文件
+     */
+    private fun trim() {
+        val files = cacheDir.listFiles()?.flatMap {
+            it.listFiles()?.toList() ?: emptyList()
+        } ?: return
+        var size = files.sumOf { it.length() }
+        if (size <= MAX_CACHE_SIZE) return
+        for (file in files.sortedBy { it.lastModified() }) {
+            if (size <= MAX_CACHE_SIZE) break
+            size -= file.length()
+            file.delete()
+        }
+    }
+
+    private fun isCacheable(pages: List<TextPage>): Boolean {
+        pages.forEach { page ->
+            page.lines.forEach { line ->
+                if (line.isImage) return false
+                for (i in 0 until line.charSize) {
+                    if (!line.isTextColumn(i) && line.getOtherColumn(i) !is ReviewColumn) {
+                        return false
+                    }
+                }
+            }
+        }
+        return true
+    }
+
+    private fun writePages(out: DataOutputStream, pages: List<TextPage>) {
+        out.writeInt(pages.size)
+        pages.forEach { page ->
+            writeString(out, page.text)
+            out.writeFloat(page.height)
+            out.writeInt(page.leftLineSize)
+            out.writeInt(page.lineSize)
+            page.lines.forEach { line ->
+                writeLine(out, line)
+            }
+        }
+    }
+
+    private fun writeLine(out: DataOutputStream, line: TextLine) {
+        writeString(out, line.text)
+        val sameChars = line.columnChars == line.text
+        out.writeBoolean(sameChars)
+        if (!sameChars) writeString(out, line.columnChars)
+        out.writeFloat(line.lineTop)
+        out.writeFloat(line.lineBase)
+        out.writeFloat(line.lineBottom)
+        out.writeFloat(line.indentWidth)
+        out.writeInt(line.paragraphNum)
+        out.writeInt(line.chapterPosition)
+        out.writeInt(line.pagePosition)
+        out.writeBoolean(line.isTitle)
+        out.writeBoolean(line.isParagraphEnd)
+        out.writeBoolean(line.isNaturalColumns)
+        out.writeInt(line.charSize)
+        for (i in 0 until line.charSize) {
+            out.writeFloat(line.getColumnStart(i))
+            out.writeFloat(line.getColumnEnd(i))
+            val other = line.getOtherColumn(i)
+            if (other is ReviewColumn) {
+                out.writeByte(COLUMN_REVIEW)
+                out.writeInt(other.count)
+            } else {
+                out.writeByte(COLUMN_TEXT)
+                out.writeInt(line.getColumnCharStart(i))
+                out.writeInt(line.getColumnCharEnd(i))
+            }
+        }
+    }
+
+    private fun readPages(input: DataInputStream): ArrayList<TextPage> {
+        val pageSize = input.readInt()
+        val pages = ArrayList<TextPage>(pageSize)
+        repeat(pageSize) {
+            val page = TextPage(text = readString(input))
+            page.height = input.readFloat()
+            page.leftLineSize = input.readInt()
+            repeat(input.readInt()) {
+                page.addLine(readLine(input))
+            }
+            pages.add(page)
+        }
+        return pages
+    }
+
+    private fun readLine(input: DataInputStream): TextLine {
+        val text = readString(input)
+        val columnChars = if (input.readBoolean()) text else readString(input)
+        val lineTop = input.readFloat()
+        val lineBase = input.readFloat()
+        val lineBottom = input.readFloat()
+        val indentWidth = input.readFloat()
+        val paragraphNum = input.readInt()
+        val chapterPosition = input.readInt()
+        val pagePosition = input.readInt()
+        val isTitle = input.readBoolean()
+        val textLine = TextLine(
+            text = text,
+            lineTop = lineTop,
+            lineBase = lineBase,
+            lineBottom = lineBottom,
+            indentWidth = indentWidth,
+            paragraphNum = paragraphNum,
+            chapterPosition = chapterPosition,
+            pagePosition = pagePosition,
+            isTitle = isTitle,
+            isParagraphEnd = input.readBoolean()
+        )
+        textLine.columnChars = columnChars
+        textLine.isNaturalColumns = input.readBoolean()
+        val columnCount = input.readInt()
+        textLine.ensureColumnCapacity(columnCount)
+        repeat(columnCount) {
+            val start = input.readFloat()
+            val end = input.readFloat()
+            when (input.readByte().toInt()) {
+                COLUMN_REVIEW -> textLine.addColumn(ReviewColumn(start, end, input.readInt()))
+                else -> textLine.addTextColumn(start, end, input.readInt(), input.readInt())
+            }
+        }
+        return textLine
+    }
+
+    private fun writeString(out: DataOutputStream, value: String) {
+        val bytes = value.toByteArray()
+        out.writeInt(bytes.size)
+        out.write(bytes)
+    }
+
+    private fun readString(input: DataInputStream): String {
+        val bytes = ByteArray(input.readInt())
+        input.readFully(bytes)
+        return String(bytes)
+    }
+
+}
@@ -23,8 +23,9 @@ import io.legado.app.ui.book.read.page.entities.TextLine
 import io.legado.app.ui.book.read.page.entities.TextPage
 import io.legado.app.ui.book.read.page.entities.column.ImageColumn
 import io.legado.app.ui.book.read.page.entities.column.ReviewColumn
-import io.legado.app.ui.book.read.page.entities.column.TextColumn
 import io.legado.app.utils.*
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
 import java.util.LinkedList
 import java.util.Locale
 import kotlin.collections.ArrayList
@@ -147,16 +148,39 @@ object ChapterProvider {
     @JvmStatic
     var reviewPaint: TextPaint = TextPaint()
 
+    @JvmStatic
+    private var titleWidthCache = GlyphWidthCache(titlePaint)
+
+    @JvmStatic
+    private var contentWidthCache = GlyphWidthCache(contentPaint)
+
     @JvmStatic
     var doublePage = false
         private set
 
+    /**
+     * 排版参数版本,样式或尺寸变化后递增,用于丢弃旧参数的排版结果
+     */
+    @Volatile
+    @JvmStatic
+    var layoutVersion = 0
+        private set
+
+    /**
+     * 排版参数指纹,用于排版结果磁盘缓存,样式或尺寸变化后改变
+     */
+    @Volatile
+    @JvmStatic
+    var layoutFingerprint = ""
+        private set
+
     init {
         upStyle()
     }
 
     /**
      * 获取拆分完的章节数据
+     * @param onPagesAdded 排好新的页后回调,可在排版完成前使用已排好的页
      */
     suspend fun getTextChapter(
         book: Book,
@@ -164,11 +188,47 @@ object ChapterProvider {
         displayTitle: String,
         bookContent: BookContent,
         chapterSize: Int,
+        onPagesAdded: ((TextChapter) -> Unit)? = null
     ): TextChapter {
         val contents = bookContent.textList
         val imageStyle = book.getImageStyle()
         val isTextImageStyle = imageStyle.equals(Book.imgStyleText, true)
-        val textPages = arrayListOf<TextPage>()
+        val textChapter = TextChapter(
+            bookChapter,
+            bookChapter.index, displayTitle,
+            chapterSize,
+            bookContent.sameTitleRemoved,
+            bookChapter.isVip,
+            bookChapter.isPay,
+            bookContent.effectiveReplaceRules
+        )
+        //纯文字章节优先使用排版缓存
+        val cacheKey = if (contents.none { AppPattern.imgPattern.matcher(it).find() }) {
+            ChapterLayoutCache.getKey(bookChapter, displayTitle, contents)
+        } else null
+        val cachePages = cacheKey?.let {
+            ChapterLayoutCache.get(book, bookChapter, it)
+        }
+        val textPages = cachePages ?: arrayListOf()
+        fun addPages(lastIndex: Int) {
+            if (textChapter.pageSize > lastIndex) return
+            for (index in textChapter.pageSize..lastIndex) {
+                val item = textPages[index]
+                item.index = index
+                item.pageSize = textPages.size
+                item.chapterIndex = bookChapter.index
+                item.chapterSize = chapterSize
+                item.title = displayTitle
+                if (cachePages == null) item.upLinesPosition()
+                textChapter.addPage(item)
+            }
+            onPagesAdded?.invoke(textChapter)
+        }
+        if (cachePages != null) {
+            addPages(textPages.lastIndex)
+            textChapter.completed()
+            return textChapter
+        }
         val stringBuilder = StringBuilder()
         var absStartX = paddingLeft
         var durY = 0f
@@ -194,7 +254,12 @@ object ChapterProvider {
             }
             durY += titleBottomSpacing
         }
+        //按已排正文占比估算总页数,滚动和进度条在排版完成前使用
+        val contentLength = contents.sumOf { it.length }.coerceAtLeast(1)
+        var laidOutLength = 0
+        //最后一页还在排版,之前的页已经结束
         contents.forEach { content ->
+            currentCoroutineContext().ensureActive()
             var text = content.replace(srcReplaceChar, "▣")
             if (isTextImageStyle) {
                 //图片样式为文字嵌入类型
@@ -299,27 +364,21 @@ object ChapterProvider {
                     }
                 }
             }
+            laidOutLength += content.length
+            textChapter.estimatedPageSize = ceil(
+                (textPages.lastIndex + durY / visibleHeight.coerceAtLeast(1)) *
+                        contentLength / laidOutLength.coerceAtLeast(1)
+            ).toInt()
+            addPages(textPages.lastIndex - 1)
         }
         textPages.last().height = durY + 20.dpToPx()
         textPages.last().text = stringBuilder.toString()
-        textPages.forEachIndexed { index, item ->
-            item.index = index
-            item.pageSize = textPages.size
-            item.chapterIndex = bookChapter.index
-            item.chapterSize = chapterSize
-            item.title = displayTitle
-            item.upLinesPosition()
+        addPages(textPages.lastIndex)
+        textChapter.completed()
+        cacheKey?.let {
+            ChapterLayoutCache.put(book, bookChapter, it, textPages)
         }
-
-        return TextChapter(
-            bookChapter,
-            bookChapter.index, displayTitle,
-            textPages, chapterSize,
-            bookContent.sameTitleRemoved,
-            bookChapter.isVip,
-            bookChapter.isPay,
-            bookContent.effectiveReplaceRules
-        )
+        return textChapter
     }
 
     /**
@@ -494,10 +553,9 @@ object ChapterProvider {
         val layout = if (ReadBookConfig.useZhLayout) {
             ZhLayout(text, textPaint, visibleWidth, widthsArray)
         } else {
-            textPaint.getTextWidths(text, widthsArray)
+            getTextWidths(text, textPaint, widthsArray)
             StaticLayout(text, textPaint, visibleWidth, Layout.Alignment.ALIGN_NORMAL, 0f, 0f, true)
         }
-        val widthsList = widthsArray.asList()
         durY = when {
             //标题y轴居中
             emptyContent && textPages.size == 1 -> {
@@ -554,15 +612,19 @@ object ChapterProvider {
             val lineStart = layout.getLineStart(lineIndex)
             val lineEnd = layout.getLineEnd(lineIndex)
             val words = text.substring(lineStart, lineEnd)
-            val textWidths = widthsList.subList(lineStart, lineEnd)
-            val desiredWidth = textWidths.sum()
+            var desiredWidth = 0f
+            for (i in lineStart until lineEnd) {
+                desiredWidth += widthsArray[i]
+            }
+            textLine.columnChars = words
+            textLine.ensureColumnCapacity(words.length)
             when {
                 lineIndex == 0 && layout.lineCount > 1 && !isTitle -> {
                     //第一行 非标题
                     textLine.text = words
                     addCharsToLineFirst(
                         book, absStartX, textLine, words,
-                        textPaint, desiredWidth, textWidths, srcList
+                        textPaint, desiredWidth, widthsArray, lineStart, srcList
                     )
                 }
 
@@ -580,8 +642,8 @@ object ChapterProvider {
                         0f
                     }
                     addCharsToLineNatural(
-                        book, absStartX, textLine, words, textPaint,
-                        startX, !isTitle && lineIndex == 0, textWidths, srcList
+                        book, absStartX, textLine, words, 0, textPaint,
+                        startX, !isTitle && lineIndex == 0, widthsArray, lineStart, srcList
                     )
                 }
 
@@ -593,15 +655,15 @@ object ChapterProvider {
                         //标题居中
                         val startX = (visibleWidth - desiredWidth) / 2
                         addCharsToLineNatural(
-                            book, absStartX, textLine, words,
-                            textPaint, startX, false, textWidths, srcList
+                            book, absStartX, textLine, words, 0,
+                            textPaint, startX, false, widthsArray, lineStart, srcList
                         )
                     } else {
                         //中间行
                         textLine.text = words
                         addCharsToLineMiddle(
-                            book, absStartX, textLine, words,
-                            textPaint, desiredWidth, 0f, textWidths, srcList
+                            book, absStartX, textLine, words, 0,
+                            textPaint, desiredWidth, 0f, widthsArray, lineStart, srcList
                         )
                     }
                 }
@@ -654,36 +716,44 @@ object ChapterProvider {
         textPaint: TextPaint,
         /**自然排版长度**/
         desiredWidth: Float,
-        textWidths: List<Float>,
+        /**段落各字符宽度**/
+        widthsArray: FloatArray,
+        /**本行在段落中的起始位置**/
+        widthsOffset: Int,
         srcList: LinkedList<String>?
     ) {
         var x = 0f
         if (!ReadBookConfig.textFullJustify) {
             addCharsToLineNatural(
-                book, absStartX, textLine, text, textPaint,
-                x, true, textWidths, srcList
+                book, absStartX, textLine, text, 0, textPaint,
+                x, true, widthsArray, widthsOffset, srcList
             )
             return
         }
         val bodyIndent = ReadBookConfig.paragraphIndent
-        for (char in bodyIndent.toStringArray()) {
+        if (!text.startsWith(bodyIndent)) {
+            //缩进列显示缩进字符,其余位置不变
+            textLine.columnChars =
+                bodyIndent + text.substring(min(bodyIndent.length, text.length))
+        }
+        var charStart = 0
+        while (charStart < bodyIndent.length) {
+            val charEnd = bodyIndent.offsetByCodePoints(charStart, 1)
             val x1 = x + indentCharWidth
-            textLine.addColumn(
-                TextColumn(
-                    charData = char,
-                    start = absStartX + x,
-                    end = absStartX + x1
-                )
+            textLine.addTextColumn(
+                start = absStartX + x,
+                end = absStartX + x1,
+                charStart = charStart,
+                charEnd = charEnd
             )
             x = x1
             textLine.indentWidth = x
+            charStart = charEnd
         }
         if (text.length > bodyIndent.length) {
-            val text1 = text.substring(bodyIndent.length, text.length)
-            val textWidths1 = textWidths.subList(bodyIndent.length, textWidths.size)
             addCharsToLineMiddle(
-                book, absStartX, textLine, text1,
-                textPaint, desiredWidth, x, textWidths1, srcList
+                book, absStartX, textLine, text, bodyIndent.length,
+                textPaint, desiredWidth, x, widthsArray, widthsOffset, srcList
             )
         }
     }
@@ -696,55 +766,58 @@ object ChapterProvider {
         absStartX: Int,
         textLine: TextLine,
         text: String,
+        /**从text的此位置开始排列**/
+        textStart: Int,
         textPaint: TextPaint,
         /**自然排版长度**/
         desiredWidth: Float,
         /**起始x坐标**/
         startX: Float,
-        textWidths: List<Float>,
+        widthsArray: FloatArray,
+        widthsOffset: Int,
         srcList: LinkedList<String>?
     ) {
         if (!ReadBookConfig.textFullJustify) {
             addCharsToLineNatural(
-                book, absStartX, textLine, text, textPaint,
-                startX, false, textWidths, srcList
+                book, absStartX, textLine, text, textStart, textPaint,
+                startX, false, widthsArray, widthsOffset, srcList
             )
             return
         }
         val residualWidth = visibleWidth - desiredWidth
-        val spaceSize = text.count { it == ' ' }
-        val (words, widths) = getStringArrayAndTextWidths(text, textWidths, textPaint)
+        var spaceSize = 0
+        for (i in textStart until text.length) {
+            if (text[i] == ' ') spaceSize++
+        }
+        val split = splitColumns(text, textStart, widthsArray, widthsOffset, textPaint)
+        val lastIndex = split.count - 1
         if (spaceSize > 1) {
             val d = residualWidth / spaceSize
             var x = startX
-            words.forEachIndexed { index, char ->
-                val cw = widths[index]
-                val x1 = if (char == " ") {
-                    if (index != words.lastIndex) (x + cw + d) else (x + cw)
-                } else {
-                    (x + cw)
-                }
+            for (index in 0..lastIndex) {
+                val cw = split.widths[index]
+                val isSpace = split.isChar(text, index, ' ')
+                val x1 = if (isSpace && index != lastIndex) (x + cw + d) else (x + cw)
                 addCharToLine(
-                    book, absStartX, textLine, char,
-                    x, x1, index + 1 == words.size, srcList
+                    book, absStartX, textLine, text, split, index,
+                    x, x1, index == lastIndex, srcList
                 )
                 x = x1
             }
         } else {
-            val gapCount: Int = words.lastIndex
-            val d = residualWidth / gapCount
+            val d = residualWidth / lastIndex
             var x = startX
-            words.forEachIndexed { index, char ->
-                val cw = widths[index]
-                val x1 = if (index != words.lastIndex) (x + cw + d) else (x + cw)
+            for (index in 0..lastIndex) {
+                val cw = split.widths[index]
+                val x1 = if (index != lastIndex) (x + cw + d) else (x + cw)
                 addCharToLine(
-                    book, absStartX, textLine, char,
-                    x, x1, index + 1 == words.size, srcList
+                    book, absStartX, textLine, text, split, index,
+                    x, x1, index == lastIndex, srcList
                 )
                 x = x1
             }
         }
-        exceed(absStartX, textLine, words)
+        exceed(absStartX, textLine, split.count)
     }
 
     /**
@@ -755,25 +828,101 @@ object ChapterProvider {
         absStartX: Int,
         textLine: TextLine,
         text: String,
+        textStart: Int,
         textPaint: TextPaint,
         startX: Float,
         hasIndent: Boolean,
-        textWidths: List<Float>,
+        widthsArray: FloatArray,
+        widthsOffset: Int,
         srcList: LinkedList<String>?
     ) {
         val indentLength = ReadBookConfig.paragraphIndent.length
         var x = startX
-        val (words, widths) = getStringArrayAndTextWidths(text, textWidths, textPaint)
-        words.forEachIndexed { index, char ->
-            val cw = widths[index]
+        val split = splitColumns(text, textStart, widthsArray, widthsOffset, textPaint)
+        for (index in 0 until split.count) {
+            val cw = split.widths[index]
             val x1 = x + cw
-            addCharToLine(book, absStartX, textLine, char, x, x1, index + 1 == words.size, srcList)
+            addCharToLine(
+                book, absStartX, textLine, text, split, index,
+                x, x1, index + 1 == split.count, srcList
+            )
             x = x1
             if (hasIndent && index == indentLength - 1) {
                 textLine.indentWidth = x
             }
         }
-        exceed(absStartX, textLine, words)
+        textLine.isNaturalColumns = !split.hasRemeasured
+        exceed(absStartX, textLine, split.count)
+    }
+
+    /**
+     * 按字符拆分的列,代理对算一列
+     */
+    private class ColumnSplit(
+        val count: Int,
+        val charStarts: IntArray,
+        val charEnds: IntArray,
+        val widths: FloatArray,
+        /**有零宽字符单独测量过,整段绘制与列宽不一致**/
+        val hasRemeasured: Boolean
+    ) {
+        fun isChar(text: String, index: Int, char: Char): Boolean {
+            return charEnds[index] - charStarts[index] == 1 && text[charStarts[index]] == char
+        }
+
+        fun isChar(text: String, index: Int, char: String): Boolean {
+            return text.regionMatches(charStarts[index], char, 0, char.length)
+                    && charEnds[index] - charStarts[index] == char.length
+        }
+    }
+
+    /**
+     * 拆分列并计算宽度,与[getStringArrayAndTextWidths]结果一致,不为每个字创建字符串
+     * @param widthsOffset text在widthsArray中的起始位置
+     */
+    private fun splitColumns(
+        text: String,
+        textStart: Int,
+        widthsArray: FloatArray,
+        widthsOffset: Int,
+        textPaint: TextPaint
+    ): ColumnSplit {
+        val length = text.length - textStart
+        val charStarts = IntArray(length)
+        val charEnds = IntArray(length)
+        val widths = FloatArray(length)
+        var count = 0
+        var hasRemeasured = false
+        for (i in textStart until text.length) {
+            if (text[i].isLowSurrogate()) {
+                continue
+            }
+            val end = if (i + 1 < text.length && text[i + 1].isLowSurrogate()) i + 2 else i + 1
+            val w = widthsArray[widthsOffset + i]
+            if (w == 0f && count > 0) {
+                val prev = count - 1
+                widths[prev] = textPaint.measureText(text, charStarts[prev], charEnds[prev])
+                widths[count] = textPaint.measureText(text, i, end)
+                hasRemeasured = true
+            } else {
+                widths[count] = w
+            }
+            charStarts[count] = i
+            charEnds[count] = end
+            count++
+        }
+        return ColumnSplit(count, charStarts, charEnds, widths, hasRemeasured)
+    }
+
+    /**
+     * 测量字符宽度,排版画笔使用宽度缓存
+     */
+    fun getTextWidths(text: String, textPaint: TextPaint, widths: FloatArray) {
+        when {
+            contentWidthCache.isFor(textPaint) -> contentWidthCache.getTextWidths(text, widths)
+            titleWidthCache.isFor(textPaint) -> titleWidthCache.getTextWidths(text, widths)
+            else -> textPaint.getTextWidths(text, widths)
+        }
     }
 
     fun getStringArrayAndTextWidths(
@@ -813,56 +962,61 @@ object ChapterProvider {
         book: Book,
         absStartX: Int,
         textLine: TextLine,
-        char: String,
+        text: String,
+        split: ColumnSplit,
+        index: Int,
         xStart: Float,
         xEnd: Float,
         isLineEnd: Boolean,
         srcList: LinkedList<String>?
     ) {
-        val column = when {
-            srcList != null && char == srcReplaceChar -> {
+        when {
+            srcList != null && split.isChar(text, index, srcReplaceChar) -> {
                 val src = srcList.removeFirst()
                 ImageProvider.cacheImage(book, src, ReadBook.bookSource)
-                ImageColumn(
-                    start = absStartX + xStart,
-                    end = absStartX + xEnd,
-                    src = src
+                textLine.addColumn(
+                    ImageColumn(
+                        start = absStartX + xStart,
+                        end = absStartX + xEnd,
+                        src = src
+                    )
                 )
             }
 
-            isLineEnd && char == reviewChar -> {
-                ReviewColumn(
-                    start = absStartX + xStart,
-                    end = absStartX + xEnd,
-                    count = 100
+            isLineEnd && split.isChar(text, index, reviewChar) -> {
+                textLine.addColumn(
+                    ReviewColumn(
+                        start = absStartX + xStart,
+                        end = absStartX + xEnd,
+                        count = 100
+                    )
                 )
             }
 
             else -> {
-                TextColumn(
+                textLine.addTextColumn(
                     start = absStartX + xStart,
                     end = absStartX + xEnd,
-                    charData = char
+                    charStart = split.charStarts[index],
+                    charEnd = split.charEnds[index]
                 )
             }
         }
-        textLine.addColumn(column)
     }
 
     /**
      * 超出边界处理
+     * @param count 本次添加的列数
      */
-    private fun exceed(absStartX: Int, textLine: TextLine, words: List<String>) {
+    private fun exceed(absStartX: Int, textLine: TextLine, count: Int) {
         val visibleEnd = absStartX + visibleWidth
-        val endX = textLine.columns.lastOrNull()?.end ?: return
+        if (textLine.charSize == 0) return
+        val endX = textLine.lineEnd
         if (endX > visibleEnd) {
-            val cc = (endX - visibleEnd) / words.size
-            for (i in 0..words.lastIndex) {
-                textLine.getColumnReverseAt(i).let {
-                    val py = cc * (words.size - i)
-                    it.start = it.start - py
-                    it.end = it.end - py
-                }
+            val cc = (endX - visibleEnd) / count
+            val lastIndex = textLine.charSize - 1
+            for (i in 0 until count) {
+                textLine.shiftColumn(lastIndex - i, -cc * (count - i))
             }
         }
     }
@@ -875,6 +1029,8 @@ object ChapterProvider {
         getPaints(typeface).let {
             titlePaint = it.first
             contentPaint = it.second
+            titleWidthCache = GlyphWidthCache(titlePaint)
+            contentWidthCache = GlyphWidthCache(contentPaint)
             reviewPaint.color = contentPaint.color
             reviewPaint.textSize = contentPaint.textSize * 0.45f
             reviewPaint.textAlign = Paint.Align.CENTER
@@ -977,6 +1133,7 @@ object ChapterProvider {
      * 更新绘制尺寸
      */
     fun upLayout() {
+        layoutVersion++
         when (AppConfig.doublePageHorizontal) {
             "0" -> doublePage = false
             "1" -> {
@@ -1011,6 +1168,24 @@ object ChapterProvider {
                 appCtx.toastOnUi("边距设置过大，请重新设置")
             }
         }
+        upLayoutFingerprint()
+    }
+
+    /**
+     * 影响分页的所有参数
+     */
+    private fun upLayoutFingerprint() {
+        val params = listOf(
+            viewWidth, viewHeight, paddingLeft, paddingTop, paddingRight, paddingBottom,
+            doublePage, isScroll, appCtx.isPad,
+            ReadBookConfig.textFont, AppConfig.systemTypefaces, ReadBookConfig.textBold,
+            titlePaint.textSize, contentPaint.textSize, contentPaint.letterSpacing,
+            lineSpacingExtra, paragraphSpacing, titleTopSpacing, titleBottomSpacing,
+            ReadBookConfig.paragraphIndent, ReadBookConfig.titleMode,
+            ReadBookConfig.useZhLayout, ReadBookConfig.textFullJustify,
+            ReadBookConfig.textBottomJustify, AppConfig.enableReview, Build.VERSION.SDK_INT
+        )
+        layoutFingerprint = MD5Utils.md5Encode16(params.joinToString(","))
     }
 
 }
@@ -0,0 +1,135 @@
+package io.legado.app.ui.book.read.page.provider
+
+import android.text.TextPaint
+import kotlin.math.max
+
+/**
+ * 字符宽度缓存,一个画笔一个,画笔样式变化后重建
+ * 中文等字符宽度与上下文无关,测量过的直接查表,其余字符和代理对仍由画笔测量
+ * 开放寻址表,键是字符,值是宽度
+ */
+class GlyphWidthCache(private val paint: TextPaint) {
+
+    companion object {
+        private const val INIT_CAPACITY = 1024
+
+        /**
+         * 只缓存不会和前后字符连写或调整间距的字符:中文标点引号,中日韩文字,全角符号
+         * 组合附加符号和变体选择符的宽度取决于前一个字符,格式控制符可能为零宽,都不缓存
+         * 韩文组合字母和阿拉伯希伯来文的表现形式需要和前后字符一起整形,也不缓存
+         */
+        fun isCacheable(c: Char): Boolean {
+            if (c in '\u2010'..'\u2027') return true
+            if (c < '\u2E80' || c.isSurrogate()) return false
+            if (c in '\uD7B0'..'\uD7FF' || c in '\uFB1D'..'\uFDFF' || c in '\uFE70'..'\uFEFF') {
+                return false
+            }
+            return when (Character.getType(c).toByte()) {
+                Character.NON_SPACING_MARK,
+                Character.ENCLOSING_MARK,
+                Character.COMBINING_SPACING_MARK,
+                Character.FORMAT -> false
+
+                else -> true
+            }
+        }
+    }
+
+    private var keys = IntArray(INIT_CAPACITY)
+    private var values = FloatArray(INIT_CAPACITY)
+    private var size = 0
+    private var runWidths = FloatArray(64)
+
+    fun isFor(paint: TextPaint): Boolean = this.paint === paint
+
+    /**
+     * 同[TextPaint.getTextWidths],连续的未缓存字符一起交给画笔测量
+     */
+    @Synchronized
+    fun getTextWidths(text: String, widths: FloatArray) {
+        val length = text.length
+        var runStart = -1
+        for (i in 0 until length) {
+            val c = text[i]
+            val width = if (isCacheable(c)) get(c.code) else -1f
+            if (width >= 0f) {
+                if (runStart >= 0) {
+                    measureRun(text, runStart, i, widths)
+                    runStart = -1
+                }
+                widths[i] = width
+            } else if (runStart < 0) {
+                runStart = i
+            }
+        }
+        if (runStart >= 0) {
+            measureRun(text, runStart, length, widths)
+        }
+    }
+
+    private fun measureRun(text: String, start: Int, end: Int, widths: FloatArray) {
+        val count = end - start
+        if (runWidths.size < count) {
+            runWidths = FloatArray(max(count, runWidths.size * 2))
+        }
+        paint.getTextWidths(text, start, end, runWidths)
+        for (i in 0 until count) {
+            val width = runWidths[i]
+            widths[start + i] = width
+            val c = text[start + i]
+            if (width > 0f && isCacheable(c)) {
+                put(c.code, width)
+            }
+        }
+    }
+
+    private fun get(key: Int): Float {
+        val mask = keys.size - 1
+        var index = hash(key) and mask
+        while (true) {
+            val k = keys[index]
+            if (k == key) return values[index]
+            if (k == 0) return -1f
+            index = (index + 1) and mask
+        }
+    }
+
+    private fun put(key: Int, value: Float) {
+        if ((size + 1) * 2 > keys.size) {
+            rehash(keys.size * 2)
+        }
+        val mask = keys.size - 1
+        var index = hash(key) and mask
+        while (true) {
+            val k = keys[index]
+            if (k == key) {
+                values[index] = value
+                return
+            }
+            if (k == 0) {
+                keys[index] = key
+                values[index] = value
+                size++
+                return
+            }
+            index = (index + 1) and mask
+        }
+    }
+
+    private fun rehash(capacity: Int) {
+        val oldKeys = keys
+        val oldValues = values
+        keys = IntArray(capacity)
+        values = FloatArray(capacity)
+        size = 0
+        for (i in oldKeys.indices) {
+            if (oldKeys[i] != 0) put(oldKeys[i], oldValues[i])
+        }
+    }
+
+    private fun hash(key: Int): Int {
+        val h = key * -0x61c88647
+        return h xor (h ushr 16)
+    }
+
+}
@@ -12,10 +12,17 @@ class TextPageFactory(dataSource: DataSource) : PageFactory<TextPage>(dataSource
     }
 
     override fun hasNext(): Boolean = with(dataSource) {
+        currentChapter?.let {
+            //排版中只能翻到已排好的页,排好后会刷新
+            if (!it.isCompleted) return pageIndex < it.pageSize - 1
+        }
         return hasNextChapter() || currentChapter?.isLastIndex(pageIndex) != true
     }
 
     override fun hasNextPlus(): Boolean = with(dataSource) {
+        currentChapter?.let {
+            if (!it.isCompleted) return pageIndex < it.pageSize - 2
+        }
         return hasNextChapter() || pageIndex < (currentChapter?.pageSize ?: 1) - 2
     }
 
@@ -80,6 +87,9 @@ class TextPageFactory(dataSource: DataSource) : PageFactory<TextPage>(dataSource
                     return@with it.getPage(pageIndex + 1)?.removePageAloudSpan()
                         ?: TextPage(title = it.title).format()
                 }
+                if (!it.isCompleted) {
+                    return@with TextPage(title = it.title).format()
+                }
             }
             if (!hasNextChapter()) {
                 return@with TextPage(text = "")
@@ -103,6 +113,7 @@ class TextPageFactory(dataSource: DataSource) : PageFactory<TextPage>(dataSource
                 }
             }
             prevChapter?.let {
+                if (!it.isCompleted) return@with TextPage(title = it.title).format()
                 return@with it.lastPage?.removePageAloudSpan()
                     ?: TextPage(title = it.title).format()
             }
@@ -116,6 +127,9 @@ class TextPageFactory(dataSource: DataSource) : PageFactory<TextPage>(dataSource
                     return@with it.getPage(pageIndex + 2)?.removePageAloudSpan()
                         ?: TextPage(title = it.title).format()
                 }
+                if (!it.isCompleted) {
+                    return@with TextPage(title = it.title).format()
+                }
                 nextChapter?.let { nc ->
                     if (pageIndex < it.pageSize - 1) {
                         return@with nc.getPage(0)?.removePageAloudSpan()
@@ -50,7 +50,7 @@ class ZhLayout(
 
     init {
         var line = 0
-        curPaint.getTextWidths(text as String, widthsArray)
+        ChapterProvider.getTextWidths(text as String, curPaint, widthsArray)
         val (words, widths) = ChapterProvider.getStringArrayAndTextWidths(
             text,
             widthsArray.asList(),
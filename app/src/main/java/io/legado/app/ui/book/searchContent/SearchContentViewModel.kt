@@ -2,14 +2,13 @@ package io.legado.app.ui.book.searchContent
 
 
 import android.app.Application
-import com.github.liuyueyi.quick.transfer.ChineseUtils
 import io.legado.app.base.BaseViewModel
 import io.legado.app.data.appDb
 import io.legado.app.data.entities.Book
 import io.legado.app.data.entities.BookChapter
+import io.legado.app.help.ChineseConverter
 import io.legado.app.help.book.BookHelp
 import io.legado.app.help.book.ContentProcessor
-import io.legado.app.help.config.AppConfig
 import kotlinx.coroutines.ensureActive
 import kotlin.coroutines.coroutineContext
 
@@ -43,11 +42,7 @@ class SearchContentViewModel(application: Application) : BaseViewModel(applicati
         val book = book ?: return searchResultsWithinChapter
         val chapterContent = BookHelp.getContent(book, chapter) ?: return searchResultsWithinChapter
         coroutineContext.ensureActive()
-        chapter.title = when (AppConfig.chineseConverterType) {
-            1 -> ChineseUtils.t2s(chapter.title)
-            2 -> ChineseUtils.s2t(chapter.title)
-            else -> chapter.title
-        }
+        chapter.title = ChineseConverter.convert(chapter.title)
         coroutineContext.ensureActive()
         val mContent = contentProcessor!!.getContent(
             book, chapter, chapterContent, useReplace = replaceEnabled
@@ -21,15 +21,17 @@ import io.legado.app.utils.gone
 import io.legado.app.utils.longToastOnUi
 import io.legado.app.utils.visible
 import kotlinx.coroutines.*
-import java.util.concurrent.ConcurrentHashMap
 
 class ChapterListAdapter(context: Context, val callback: Callback) :
     DiffRecyclerAdapter<BookChapter, ItemChapterListBinding>(context) {
 
     val cacheFileNames = hashSetOf<String>()
-    private val displayTitleMap = ConcurrentHashMap<String, String>()
     private val handler = Handler(Looper.getMainLooper())
 
+    /* 持有处理器,避免缓存的显示标题随处理器回收 */
+    @Volatile
+    private var contentProcessor: ContentProcessor? = null
+
     override val diffItemCallback: DiffUtil.ItemCallback<BookChapter>
         get() = object : DiffUtil.ItemCallback<BookChapter>() {
 
@@ -62,26 +64,28 @@ class ChapterListAdapter(context: Context, val callback: Callback) :
         callback.onListChanged()
     }
 
+    /**
+     * 显示标题缓存在[ContentProcessor]中,规则和设置变化后自动失效,这里只需停止任务
+     */
     fun clearDisplayTitle() {
         upDisplayTileJob?.cancel()
-        displayTitleMap.clear()
+        notifyItemRangeChanged(0, itemCount, true)
     }
 
     fun upDisplayTitles(startIndex: Int) {
         upDisplayTileJob?.cancel()
         upDisplayTileJob = Coroutine.async(callback.scope) {
             val book = callback.book ?: return@async
-            val replaceRules = ContentProcessor.get(book.name, book.origin).getTitleReplaceRules()
+            val processor = getContentProcessor(book)
             val useReplace = AppConfig.tocUiUseReplace && book.getUseReplaceRule()
             val items = getItems()
             launch {
                 for (i in startIndex until items.size) {
                     val item = items[i]
-                    if (displayTitleMap[item.title] == null) {
+                    if (processor.peekDisplayTitle(item, useReplace) == null) {
                         ensureActive()
-                        val displayTitle = item.getDisplayTitle(replaceRules, useReplace)
+                        processor.getDisplayTitle(item, useReplace)
                         ensureActive()
-                        displayTitleMap[item.title] = displayTitle
                         handler.post {
                             notifyItemChanged(i, true)
                         }
@@ -91,11 +95,10 @@ class ChapterListAdapter(context: Context, val callback: Callback) :
             launch {
                 for (i in startIndex downTo 0) {
                     val item = items[i]
-                    if (displayTitleMap[item.title] == null) {
+                    if (processor.peekDisplayTitle(item, useReplace) == null) {
                         ensureActive()
-                        val displayTitle = item.getDisplayTitle(replaceRules, useReplace)
+                        processor.getDisplayTitle(item, useReplace)
                         ensureActive()
-                        displayTitleMap[item.title] = displayTitle
                         handler.post {
                             notifyItemChanged(i, true)
                         }
@@ -106,7 +109,15 @@ class ChapterListAdapter(context: Context, val callback: Callback) :
     }
 
     private fun getDisplayTitle(chapter: BookChapter): String {
-        return displayTitleMap[chapter.title] ?: chapter.title
+        val book = callback.book ?: return chapter.title
+        val useReplace = AppConfig.tocUiUseReplace && book.getUseReplaceRule()
+        return getContentProcessor(book).peekDisplayTitle(chapter, useReplace) ?: chapter.title
+    }
+
+    private fun getContentProcessor(book: Book): ContentProcessor {
+        return contentProcessor ?: ContentProcessor.get(book).also {
+            contentProcessor = it
+        }
     }
 
     override fun getViewBinding(parent: ViewGroup): ItemChapterListBinding {
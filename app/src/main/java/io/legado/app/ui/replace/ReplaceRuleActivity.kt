@@ -24,6 +24,7 @@ import io.legado.app.databinding.ActivityReplaceRuleBinding
 import io.legado.app.databinding.DialogEditTextBinding
 import io.legado.app.help.DirectLinkUpload
 import io.legado.app.help.book.ContentProcessor
+import io.legado.app.help.book.ReplaceRuleStats
 import io.legado.app.help.coroutine.Coroutine
 import io.legado.app.lib.dialogs.alert
 import io.legado.app.lib.theme.primaryColor
@@ -242,6 +243,7 @@ class ReplaceRuleActivity : VMBaseActivity<ActivityReplaceRuleBinding, ReplaceRu
                 allowExtensions = arrayOf("txt", "json")
             }
             R.id.menu_import_qr -> qrCodeResult.launch()
+            R.id.menu_rule_stats -> showRuleStats()
             R.id.menu_help -> showHelp()
             R.id.menu_group_null -> {
                 searchView.setQuery(getString(R.string.no_group), true)
@@ -311,6 +313,35 @@ class ReplaceRuleActivity : VMBaseActivity<ActivityReplaceRuleBinding, ReplaceRu
         }
     }
 
+    /**
+     * 显示正文替换规则耗时,单章耗时超过阈值的规则标记为慢规则
+     */
+    private fun showRuleStats() {
+        val stats = ReplaceRuleStats.getStats().filter { it.calls > 0 || it.skipped > 0 }
+        val text = if (stats.isEmpty()) {
+            getString(R.string.replace_rule_stats_empty)
+        } else buildString {
+            append(getString(R.string.replace_rule_stats_slow_tip, ReplaceRuleStats.SLOW_RULE_MS))
+            append("\n\n")
+            append(getString(R.string.replace_rule_stats_header)).append("\n")
+            append("| --- | --- | --- | --- | --- | --- | --- |\n")
+            stats.forEach {
+                append("| ")
+                if (it.slow) append("⚠")
+                append(it.name.replace("|", "\\|")).append(" | ")
+                append(it.calls).append(" | ")
+                append(it.skipped).append(" | ")
+                append(it.matches).append(" | ")
+                append(String.format("%.1f", it.totalMs)).append(" | ")
+                append(String.format("%.2f", it.avgMs)).append(" | ")
+                append(String.format("%.1f", it.maxMs)).append(" |\n")
+            }
+        }
+        showDialogFragment(
+            TextDialog(getString(R.string.replace_rule_stats), text, TextDialog.Mode.MD)
+        )
+    }
+
     private fun showHelp() {
         val text = String(assets.open("help/replaceRuleHelp.md").readBytes())
         showDialogFragment(TextDialog(getString(R.string.help), text, TextDialog.Mode.MD))
@@ -5,6 +5,7 @@ import android.text.TextUtils
 import io.legado.app.base.BaseViewModel
 import io.legado.app.data.appDb
 import io.legado.app.data.entities.ReplaceRule
+import io.legado.app.help.book.ReplaceRuleIndex
 import io.legado.app.utils.splitNotBlank
 
 /**
@@ -16,12 +17,14 @@ class ReplaceRuleViewModel(application: Application) : BaseViewModel(application
     fun update(vararg rule: ReplaceRule) {
         execute {
             appDb.replaceRuleDao.update(*rule)
+            ReplaceRuleIndex.update(*rule)
         }
     }
 
     fun delete(rule: ReplaceRule) {
         execute {
             appDb.replaceRuleDao.delete(rule)
+            ReplaceRuleIndex.remove(rule)
         }
     }
 
@@ -29,6 +32,7 @@ class ReplaceRuleViewModel(application: Application) : BaseViewModel(application
         execute {
             rule.order = appDb.replaceRuleDao.minOrder - 1
             appDb.replaceRuleDao.update(rule)
+            ReplaceRuleIndex.update(rule)
         }
     }
 
@@ -39,6 +43,7 @@ class ReplaceRuleViewModel(application: Application) : BaseViewModel(application
                 it.order = ++minOrder
             }
             appDb.replaceRuleDao.update(*rules.toTypedArray())
+            ReplaceRuleIndex.update(*rules.toTypedArray())
         }
     }
 
@@ -46,6 +51,7 @@ class ReplaceRuleViewModel(application: Application) : BaseViewModel(application
         execute {
             rule.order = appDb.replaceRuleDao.maxOrder + 1
             appDb.replaceRuleDao.update(rule)
+            ReplaceRuleIndex.update(rule)
         }
     }
 
@@ -56,6 +62,7 @@ class ReplaceRuleViewModel(application: Application) : BaseViewModel(application
                 it.order = maxOrder++
             }
             appDb.replaceRuleDao.update(*rules.toTypedArray())
+            ReplaceRuleIndex.update(*rules.toTypedArray())
         }
     }
 
@@ -66,6 +73,7 @@ class ReplaceRuleViewModel(application: Application) : BaseViewModel(application
                 rule.order = index + 1
             }
             appDb.replaceRuleDao.update(*rules.toTypedArray())
+            ReplaceRuleIndex.update(*rules.toTypedArray())
         }
     }
 
@@ -75,6 +83,7 @@ class ReplaceRuleViewModel(application: Application) : BaseViewModel(application
                 rules[it].copy(isEnabled = true)
             }
             appDb.replaceRuleDao.update(*array)
+            ReplaceRuleIndex.update(*array)
         }
     }
 
@@ -84,12 +93,14 @@ class ReplaceRuleViewModel(application: Application) : BaseViewModel(application
                 rules[it].copy(isEnabled = false)
             }
             appDb.replaceRuleDao.update(*array)
+            ReplaceRuleIndex.update(*array)
         }
     }
 
     fun delSelection(rules: List<ReplaceRule>) {
         execute {
             appDb.replaceRuleDao.delete(*rules.toTypedArray())
+            ReplaceRuleIndex.remove(*rules.toTypedArray())
         }
     }
 
@@ -100,6 +111,7 @@ class ReplaceRuleViewModel(application: Application) : BaseViewModel(application
                 source.group = group
             }
             appDb.replaceRuleDao.update(*sources.toTypedArray())
+            ReplaceRuleIndex.update(*sources.toTypedArray())
         }
     }
 
@@ -115,6 +127,7 @@ class ReplaceRuleViewModel(application: Application) : BaseViewModel(application
                 }
             }
             appDb.replaceRuleDao.update(*sources.toTypedArray())
+            ReplaceRuleIndex.update(*sources.toTypedArray())
         }
     }
 
@@ -129,6 +142,7 @@ class ReplaceRuleViewModel(application: Application) : BaseViewModel(application
                     }
                 }
                 appDb.replaceRuleDao.update(*sources.toTypedArray())
+                ReplaceRuleIndex.update(*sources.toTypedArray())
             }
         }
     }
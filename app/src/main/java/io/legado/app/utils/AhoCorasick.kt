@@ -0,0 +1,116 @@
+package io.legado.app.utils
+
+import java.util.BitSet
+
+/**
+ * 多模式字符串匹配,一次扫描找出文本中出现的所有关键词
+ * 构建后只读,可多线程共用
+ * @param keywords 关键词,序号即[scan]返回的位
+ */
+class AhoCorasick(keywords: List<String>) {
+
+    /* 每个节点的子节点,按字符排序 */
+    private val childChars: Array<CharArray>
+    private val childNodes: Array<IntArray>
+
+    /* 失配跳转 */
+    private val fail: IntArray
+
+    /* 节点结束的关键词序号 */
+    private val outputs: Array<IntArray?>
+
+    /* 沿失配链最近的有输出的节点,没有为-1 */
+    private val outputLink: IntArray
+
+    val size = keywords.size
+
+    init {
+        val children = arrayListOf(HashMap<Char, Int>())
+        val ends = arrayListOf<ArrayList<Int>?>(null)
+        keywords.forEachIndexed { index, keyword ->
+            if (keyword.isEmpty()) return@forEachIndexed
+            var node = 0
+            for (c in keyword) {
+                node = children[node].getOrPut(c) {
+                    children.add(HashMap())
+                    ends.add(null)
+                    children.lastIndex
+                }
+            }
+            (ends[node] ?: arrayListOf<Int>().also { ends[node] = it }).add(index)
+        }
+        val nodeCount = children.size
+        childChars = Array(nodeCount) { node ->
+            children[node].keys.sorted().toCharArray()
+        }
+        childNodes = Array(nodeCount) { node ->
+            IntArray(childChars[node].size) { children[node][childChars[node][it]]!! }
+        }
+        outputs = Array(nodeCount) { ends[it]?.toIntArray() }
+        fail = IntArray(nodeCount)
+        outputLink = IntArray(nodeCount) { -1 }
+        //广度优先计算失配跳转
+        val queue = IntArray(nodeCount)
+        var head = 0
+        var tail = 0
+        childNodes[0].forEach { queue[tail++] = it }
+        while (head < tail) {
+            val node = queue[head++]
+            val chars = childChars[node]
+            val nodes = childNodes[node]
+            for (i in chars.indices) {
+                val child = nodes[i]
+                var f = fail[node]
+                var next = goto(f, chars[i])
+                while (next < 0 && f != 0) {
+                    f = fail[f]
+                    next = goto(f, chars[i])
+                }
+                fail[child] = if (next < 0 || next == child) 0 else next
+                val failNode = fail[child]
+                outputLink[child] = if (outputs[failNode] != null) failNode else outputLink[failNode]
+                queue[tail++] = child
+            }
+        }
+    }
+
+    private fun goto(node: Int, c: Char): Int {
+        val chars = childChars[node]
+        var low = 0
+        var high = chars.size - 1
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            val midChar = chars[mid]
+            when {
+                midChar < c -> low = mid + 1
+                midChar > c -> high = mid - 1
+                else -> return childNodes[node][mid]
+            }
+        }
+        return -1
+    }
+
+    /**
+     * 扫描文本
+     * @return 文本中出现的关键词序号
+     */
+    fun scan(text: CharSequence, result: BitSet = BitSet(size)): BitSet {
+        var node = 0
+        for (i in 0 until text.length) {
+            val c = text[i]
+            var next = goto(node, c)
+            while (next < 0 && node != 0) {
+                node = fail[node]
+                next = goto(node, c)
+            }
+            node = if (next < 0) 0 else next
+            var out = if (outputs[node] != null) node else outputLink[node]
+            while (out >= 0) {
+                outputs[out]!!.forEach { result.set(it) }
+                out = outputLink[out]
+            }
+        }
+        return result
+    }
+
+}
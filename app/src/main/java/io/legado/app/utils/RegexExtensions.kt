@@ -1,69 +1,150 @@
 package io.legado.app.utils
 
-import androidx.core.os.postDelayed
 import com.script.SimpleBindings
 import com.script.rhino.RhinoScriptEngine
 import io.legado.app.exception.RegexTimeoutException
 import io.legado.app.help.CrashHandler
-import io.legado.app.help.coroutine.Coroutine
-import kotlinx.coroutines.Dispatchers.IO
-import kotlinx.coroutines.runBlocking
-import kotlinx.coroutines.suspendCancellableCoroutine
 import splitties.init.appCtx
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
 import java.util.regex.Matcher
-import kotlin.coroutines.resume
-import kotlin.coroutines.resumeWithException
 
-private val regexHandler by lazy { buildMainHandler() }
+private val regexExecutor by lazy {
+    Executors.newCachedThreadPool {
+        Thread(it, "RegexReplace").apply { isDaemon = true }
+    }
+}
+
+private val regexWatchdog by lazy {
+    Executors.newSingleThreadScheduledExecutor {
+        Thread(it, "RegexWatchdog").apply { isDaemon = true }
+    }
+}
 
 /**
  * 带有超时检测的正则替换
  */
 fun CharSequence.replace(regex: Regex, replacement: String, timeout: Long): String {
-    val charSequence = this@replace
+    try {
+        return replaceWithWatchdog(regex, replacement, timeout) {
+            appCtx.restart()
+        }
+    } catch (e: RegexTimeoutException) {
+        appCtx.longToastOnUi(e.localizedMessage)
+        CrashHandler.saveCrashInfo2File(e)
+        throw e
+    }
+}
+
+/**
+ * 在单独线程执行替换,调用线程最多等待[timeout]毫秒,超时抛出[RegexTimeoutException]
+ * JVM的正则通过[TimeoutCharSequence]读取字符,超时后自行停止
+ * Android的正则由ICU实现,匹配时不读取CharSequence,无法中途停止,
+ * 超时后中断线程,3秒后还未结束调用[onStuck]
+ */
+internal fun CharSequence.replaceWithWatchdog(
+    regex: Regex,
+    replacement: String,
+    timeout: Long,
+    onStuck: () -> Unit
+): String {
+    val charSequence = this@replaceWithWatchdog
+    val timeoutSequence = TimeoutCharSequence(charSequence, timeout)
+    val finished = CountDownLatch(1)
+    val future = regexExecutor.submit(Callable {
+        try {
+            timeoutSequence.replaceAll(regex, replacement)
+        } finally {
+            finished.countDown()
+        }
+    })
+    try {
+        return future.get(timeout, TimeUnit.MILLISECONDS)
+    } catch (e: ExecutionException) {
+        val cause = e.cause ?: e
+        if (cause !is TimeoutCharSequence.TimeoutError) throw cause
+    } catch (e: TimeoutException) {
+        future.cancel(true)
+        regexWatchdog.schedule({
+            if (finished.count > 0) onStuck()
+        }, 3, TimeUnit.SECONDS)
+    }
+    throw RegexTimeoutException(
+        "替换超时,3秒后还未结束将重启应用\n替换规则$regex\n替换内容:$charSequence"
+    )
+}
+
+private fun TimeoutCharSequence.replaceAll(regex: Regex, replacement: String): String {
     val isJs = replacement.startsWith("@js:")
     val replacement1 = if (isJs) replacement.substring(4) else replacement
-    return runBlocking {
-        suspendCancellableCoroutine { block ->
-            val coroutine = Coroutine.async(executeContext = IO) {
-                try {
-                    val pattern = regex.toPattern()
-                    val matcher = pattern.matcher(charSequence)
-                    val stringBuffer = StringBuffer()
-                    while (matcher.find()) {
-                        if (isJs) {
-                            val jsResult = RhinoScriptEngine.run {
-                                val bindings = SimpleBindings()
-                                bindings["result"] = matcher.group()
-                                eval(replacement1, bindings)
-                            }.toString()
-                            val quotedResult = Matcher.quoteReplacement(jsResult)
-                            matcher.appendReplacement(stringBuffer, quotedResult)
-                        } else {
-                            matcher.appendReplacement(stringBuffer, replacement1)
-                        }
-                    }
-                    matcher.appendTail(stringBuffer)
-                    block.resume(stringBuffer.toString())
-                } catch (e: Exception) {
-                    block.resumeWithException(e)
-                }
-            }
-            regexHandler.postDelayed(timeout) {
-                if (coroutine.isActive) {
-                    val timeoutMsg = "替换超时,3秒后还未结束将重启应用\n替换规则$regex\n替换内容:$charSequence"
-                    val exception = RegexTimeoutException(timeoutMsg)
-                    block.cancel(exception)
-                    appCtx.longToastOnUi(timeoutMsg)
-                    CrashHandler.saveCrashInfo2File(exception)
-                    regexHandler.postDelayed(3000) {
-                        if (coroutine.isActive) {
-                            appCtx.restart()
-                        }
-                    }
-                }
-            }
-        }
+    val matcher = regex.toPattern().matcher(this)
+    if (!matcher.find()) {
+        return toString()
     }
+    val stringBuffer = StringBuffer()
+    do {
+        if (isJs) {
+            val jsResult = RhinoScriptEngine.run {
+                val bindings = SimpleBindings()
+                bindings["result"] = matcher.group()
+                eval(replacement1, bindings)
+            }.toString()
+            checkTimeout()
+            val quotedResult = Matcher.quoteReplacement(jsResult)
+            matcher.appendReplacement(stringBuffer, quotedResult)
+        } else {
+            matcher.appendReplacement(stringBuffer, replacement1)
+        }
+    } while (matcher.find())
+    matcher.appendTail(stringBuffer)
+    return stringBuffer.toString()
 }
 
+/**
+ * 超过截止时间后读取字符时抛出异常,用于中断正则匹配
+ * 每读取一定数量的字符检查一次时间,开销很小
+ */
+private class TimeoutCharSequence(
+    private val text: CharSequence,
+    timeout: Long
+) : CharSequence {
+
+    class TimeoutError : RuntimeException() {
+        override fun fillInStackTrace(): Throwable = this
+    }
+
+    private val deadline = System.nanoTime() + timeout * 1_000_000
+    private var readCount = 0
+
+    override val length: Int
+        get() = text.length
+
+    override fun get(index: Int): Char {
+        if (++readCount and 0xFFF == 0) {
+            checkTimeout()
+        }
+        return text[index]
+    }
+
+    fun checkTimeout() {
+        if (System.nanoTime() - deadline > 0) {
+            throw TimeoutError()
+        }
+    }
+
+    /**
+     * 只用于取分组和拼接结果,不再检测超时
+     */
+    override fun subSequence(startIndex: Int, endIndex: Int): CharSequence {
+        return text.subSequence(startIndex, endIndex)
+    }
+
+    override fun toString(): String {
+        return text.toString()
+    }
+
+}
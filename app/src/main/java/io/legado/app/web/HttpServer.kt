@@ -85,6 +85,7 @@ class HttpServer(port: Int) : NanoHTTPD(port) {
                         "/getRssSource" -> RssSourceController.getSource(parameters)
                         "/getRssSources" -> RssSourceController.sources
                         "/getReplaceRules" -> ReplaceRuleController.allRules
+                        "/getReplaceRuleStats" -> ReplaceRuleController.ruleStats
                         else -> null
                     }
                 }
@@ -0,0 +1,105 @@
+package io.legado.app
+
+import io.legado.app.help.book.ChapterCompress
+import org.junit.After
+import org.junit.Assert
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+import java.util.Random
+
+/**
+ * 章节压缩的正确性和压缩率、解压耗时
+ * 耗时与设备有关,只输出不断言
+ */
+class ChapterCompressTest {
+
+    private val dir: File = Files.createTempDirectory("chapterCompress").toFile()
+
+    @After
+    fun clear() {
+        ChapterCompress.clearDict(dir.absolutePath)
+        dir.deleteRecursively()
+    }
+
+    private fun chapter(random: Random, length: Int): String {
+        val names = listOf("林动", "青檀", "绫清竹", "小貂", "岩")
+        val words = listOf("说道", "微微一笑", "点了点头", "目光一凝", "体内元力涌动", "。", "，", "！\n")
+        val sb = StringBuilder(length + 16)
+        while (sb.length < length) {
+            sb.append(names[random.nextInt(names.size)])
+            sb.append(words[random.nextInt(words.size)])
+        }
+        return sb.toString()
+    }
+
+    @Test
+    fun roundTrip() {
+        val random = Random(1)
+        val texts = List(12) { chapter(random, 3000 + random.nextInt(3000)) }
+        val encoded = texts.map { ChapterCompress.compress(dir, it) }
+        Assert.assertTrue(File(dir, ChapterCompress.DICT_FILE_NAME).exists())
+        texts.forEachIndexed { i, text ->
+            Assert.assertTrue(ChapterCompress.isCompressed(encoded[i]))
+            Assert.assertEquals(text, ChapterCompress.decode(dir, encoded[i]))
+            Assert.assertEquals(text, ChapterCompress.decode(dir, encoded[i].inputStream()))
+        }
+        Assert.assertEquals("明文", ChapterCompress.decode(dir, "明文".toByteArray()))
+    }
+
+    @Test
+    fun missingDict() {
+        val random = Random(2)
+        val encoded = List(12) { ChapterCompress.compress(dir, chapter(random, 4000)) }
+        ChapterCompress.clearDict(dir.absolutePath)
+        File(dir, ChapterCompress.DICT_FILE_NAME).delete()
+        Assert.assertNull(ChapterCompress.decode(dir, encoded.last()))
+        Assert.assertNull(ChapterCompress.decode(dir, encoded.last().inputStream()))
+    }
+
+    @Test
+    fun brokenData() {
+        val random = Random(4)
+        val encoded = List(12) { ChapterCompress.compress(dir, chapter(random, 4000)) }
+        val last = encoded.last()
+        //截断
+        Assert.assertNull(ChapterCompress.decode(dir, last.copyOf(last.size / 2)))
+        //数据损坏
+        val broken = last.copyOf()
+        for (i in 8 until broken.size step 7) broken[i] = broken[i].inc()
+        Assert.assertNull(ChapterCompress.decode(dir, broken))
+        //字典不完整
+        ChapterCompress.clearDict(dir.absolutePath)
+        val dictFile = File(dir, ChapterCompress.DICT_FILE_NAME)
+        dictFile.writeBytes(dictFile.readBytes().copyOf(100))
+        Assert.assertNull(ChapterCompress.decode(dir, last))
+        Assert.assertTrue(!dictFile.exists())
+    }
+
+    @Test
+    fun benchmark() {
+        val random = Random(3)
+        val texts = List(200) { chapter(random, 2000 + random.nextInt(8000)) }
+        val rawSize = texts.sumOf { it.toByteArray().size.toLong() }
+        var start = System.nanoTime()
+        val encoded = texts.map { ChapterCompress.compress(dir, it) }
+        val compressNs = System.nanoTime() - start
+        val packedSize = encoded.sumOf { it.size.toLong() }
+        //预热
+        encoded.forEach { ChapterCompress.decode(dir, it) }
+        start = System.nanoTime()
+        encoded.forEach { ChapterCompress.decode(dir, it) }
+        val decodeNs = System.nanoTime() - start
+        start = System.nanoTime()
+        texts.forEach { String(it.toByteArray()) }
+        val plainNs = System.nanoTime() - start
+        println(
+            "chapters=${texts.size} ratio=${"%.3f".format(packedSize.toDouble() / rawSize)} " +
+                    "compress=${compressNs / texts.size / 1000}us/章 " +
+                    "decode=${decodeNs / texts.size / 1000}us/章 " +
+                    "plain=${plainNs / texts.size / 1000}us/章"
+        )
+        Assert.assertTrue(packedSize < rawSize)
+    }
+
+}
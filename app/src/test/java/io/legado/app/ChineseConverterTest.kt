@@ -0,0 +1,68 @@
+package io.legado.app
+
+import com.github.liuyueyi.quick.transfer.ChineseUtils
+import io.legado.app.help.ChineseConverter
+import io.legado.app.help.ChineseDictionary
+import org.junit.Assert
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+
+class ChineseConverterTest {
+
+    private val dir: File = Files.createTempDirectory("chineseDict").toFile()
+
+    init {
+        ChineseConverter.dictDir = dir
+        ChineseConverter.release()
+    }
+
+    /**
+     * 字典树正向最长匹配,未收录的字符原样保留
+     */
+    @Test
+    fun testDictionary() {
+        val bytes = ChineseDictionary.compile(
+            mapOf(
+                "头" to "頭", "发" to "發", "头发" to "頭髮", "理发" to "理髮",
+                "理发师" to "理髮師", "𠀀" to "X"
+            )
+        )
+        val file = File(dir, "test.dat")
+        file.writeBytes(bytes)
+        val dictionary = ChineseDictionary.load(file)!!
+        val text = "理发师说头发要理发a𠀀发"
+        val sb = StringBuilder()
+        dictionary.convert(text, 0, text.length, sb)
+        Assert.assertEquals("理髮師说頭髮要理髮aX發", sb.toString())
+        file.writeBytes(bytes.copyOf(bytes.size - 1))
+        Assert.assertNull(ChineseDictionary.load(file))
+    }
+
+    /**
+     * 词典编译自quick-transfer的词表,转换结果应与quick-transfer一致,切块并行转换的结果应与整体转换一致
+     */
+    @Test
+    fun testParallelConvert() {
+        Assert.assertTrue(
+            "未找到quick-transfer词表",
+            ChineseConverter.convert("简体", ChineseConverter.S2T, StringBuilder())
+        )
+        val sample = listOf("chapter1", "chapter2", "chapter3").joinToString("\n") {
+            javaClass.getResource("/reSegment/$it.txt")!!.readText()
+        }
+        sample.lines().forEach {
+            Assert.assertEquals(ChineseUtils.s2t(it), ChineseConverter.s2t(it))
+        }
+        val text = buildString {
+            while (length < 100 * 1024) append(sample).append('\n')
+        }
+        val traditional = ChineseUtils.s2t(text)
+        Assert.assertEquals(traditional, ChineseConverter.s2t(text))
+        Assert.assertEquals(ChineseUtils.t2s(traditional), ChineseConverter.t2s(traditional))
+        //再次加载使用编译好的文件
+        ChineseConverter.release()
+        Assert.assertEquals(traditional, ChineseConverter.s2t(text))
+    }
+
+}
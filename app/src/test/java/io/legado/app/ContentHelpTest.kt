@@ -0,0 +1,27 @@
+package io.legado.app
+
+import io.legado.app.help.book.ContentHelp
+import org.junit.Assert
+import org.junit.Test
+import kotlin.random.Random
+
+class ContentHelpTest {
+
+    private fun readResource(name: String): String {
+        return javaClass.getResource("/reSegment/$name")!!.readText()
+    }
+
+    /**
+     * 样例章节的重新分段结果应与改写前的正则实现一致
+     */
+    @Test
+    fun testReSegmentGolden() {
+        listOf("chapter1", "chapter2", "chapter3").forEach { name ->
+            val content = readResource("$name.txt")
+            val title = content.substringBefore('\n')
+            val expected = readResource("$name.expected.txt")
+            Assert.assertEquals(name, expected, ContentHelp.reSegment(content, title, Random(1)))
+        }
+    }
+
+}
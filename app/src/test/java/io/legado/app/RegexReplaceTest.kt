@@ -0,0 +1,30 @@
+package io.legado.app
+
+import io.legado.app.exception.RegexTimeoutException
+import io.legado.app.utils.replaceWithWatchdog
+import org.junit.Assert
+import org.junit.Test
+
+class RegexReplaceTest {
+
+    @Test
+    fun replace() {
+        val result = "第1章 正文 第2章".replaceWithWatchdog(Regex("第(\\d)章"), "[$1]", 1000) {}
+        Assert.assertEquals("[1] 正文 [2]", result)
+    }
+
+    @Test
+    fun timeout() {
+        //灾难性回溯
+        val text = "a".repeat(40)
+        val start = System.currentTimeMillis()
+        try {
+            text.replaceWithWatchdog(Regex("((a+)+)+c"), "", 500) {}
+            Assert.fail("应超时")
+        } catch (e: RegexTimeoutException) {
+            val time = System.currentTimeMillis() - start
+            Assert.assertTrue("耗时${time}ms", time < 1500)
+        }
+    }
+
+}
@@ -0,0 +1,43 @@
+package io.legado.app
+
+import io.legado.app.help.book.ReplaceRuleSet
+import io.legado.app.utils.AhoCorasick
+import org.junit.Assert
+import org.junit.Test
+
+class ReplaceRuleSetTest {
+
+    @Test
+    fun testAhoCorasick() {
+        val keywords = listOf("he", "she", "his", "hers", "广告", "告白")
+        val hits = AhoCorasick(keywords).scan("ushers 广告白")
+        Assert.assertEquals(listOf(true, true, false, true, true, true), keywords.indices.map { hits[it] })
+        val random = java.util.Random(1)
+        repeat(1000) {
+            val words = List(random.nextInt(8) + 1) {
+                (0..random.nextInt(4)).map { "abc"[random.nextInt(3)] }.joinToString("")
+            }
+            val text = (0..random.nextInt(30)).map { "abcd"[random.nextInt(4)] }.joinToString("")
+            val result = AhoCorasick(words).scan(text)
+            words.forEachIndexed { index, word ->
+                Assert.assertEquals("$words $text", text.contains(word), result[index])
+            }
+        }
+    }
+
+    @Test
+    fun testRequiredLiteral() {
+        Assert.assertEquals("本站", ReplaceRuleSet.requiredLiteral("\\p{Han}+本站"))
+        Assert.assertEquals("最新章节", ReplaceRuleSet.requiredLiteral("[abc]+最新章节\\s*"))
+        Assert.assertEquals("请记住本站域名", ReplaceRuleSet.requiredLiteral("请记住本站域名[:：].*"))
+        Assert.assertEquals("看书网", ReplaceRuleSet.requiredLiteral("(?:a|b)看书网"))
+        Assert.assertEquals("http", ReplaceRuleSet.requiredLiteral("https?://\\S+"))
+        Assert.assertEquals(".com", ReplaceRuleSet.requiredLiteral("\\.com"))
+        Assert.assertEquals("yz", ReplaceRuleSet.requiredLiteral("x{2,3}yz"))
+        Assert.assertEquals("xyz", ReplaceRuleSet.requiredLiteral("(广告)?xyz"))
+        Assert.assertNull(ReplaceRuleSet.requiredLiteral("广告|推广"))
+        Assert.assertNull(ReplaceRuleSet.requiredLiteral("(?i)abc"))
+        Assert.assertNull(ReplaceRuleSet.requiredLiteral("\\Qab\\E"))
+    }
+
+}